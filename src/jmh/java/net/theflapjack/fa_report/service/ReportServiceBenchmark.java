@@ -0,0 +1,103 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.TransactionBatch;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Hot paths of a report on synthetic FA responses, run with: mvn -Pjmh test-compile exec:exec
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class ReportServiceBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private ReportService service;
+    private ReportService parallelService;
+    private ParallelRenderer parallelRenderer;
+    private String json;
+    private TransactionBatch transactions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Only the pure parse/render methods are benchmarked so none of the upstream collaborators are needed
+        service = ReportService.forRendering(ParallelRenderer.sequential());
+        // every size is split into 8192 row ranges on a pool with one thread per core
+        parallelRenderer = new ParallelRenderer(1, 0, 8192);
+        parallelService = ReportService.forRendering(parallelRenderer);
+        json = FaApiStub.syntheticResponse(List.of(1L), rows);
+        transactions = service.parseTransactions(json);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parallelRenderer.shutdown();
+    }
+
+    @Benchmark
+    public TransactionBatch parse() {
+        return service.parseTransactions(json);
+    }
+
+    @Benchmark
+    public String renderRaw() {
+        return service.convertToCsv(transactions);
+    }
+
+    @Benchmark
+    public String renderHuman() {
+        return service.convertToHumanCsv(transactions);
+    }
+
+    @Benchmark
+    public String renderRawParallel() {
+        return parallelService.convertToCsv(transactions);
+    }
+
+    @Benchmark
+    public String renderHumanParallel() {
+        return parallelService.convertToHumanCsv(transactions);
+    }
+
+    @Benchmark
+    public int[] sortHuman() {
+        return HumanRowOrder.of(transactions);
+    }
+
+    @Benchmark
+    public int[] sortHumanComparator() {
+        return HumanRowOrder.byComparator(transactions);
+    }
+
+    @Benchmark
+    public double[] summarize() {
+        return service.summarizeCashFlows(transactions);
+    }
+
+    @Benchmark
+    public void formatDates(Blackhole blackhole) {
+        for (int row = 0; row < transactions.size(); row++) {
+            blackhole.consume(service.formatDate(transactions.transactionDate(row)));
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package net.theflapjack.fa_report.auth;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import reactor.core.publisher.Mono;
 
 @Component
@@ -10,14 +14,30 @@ public class OAuthClient {
 
     private final WebClient webClient;
 
-    public OAuthClient() {
+    @Autowired
+    public OAuthClient(@Value("${fa.api.auth-url:https://tryme.fasolutions.com/auth/realms/fa/protocol/openid-connect}") String authUrl,
+                       ClientHttpConnector faHttpConnector) {
         this.webClient = WebClient.builder()
-                .baseUrl("https://tryme.fasolutions.com/auth/realms/fa/protocol/openid-connect")
+                .baseUrl(authUrl)
+                .clientConnector(faHttpConnector)
                 .defaultHeader("Content-Type", "application/x-www-form-urlencoded")
                 .build();
     }
 
+    // Own default connector, for tests that override the calls anyway
+    public OAuthClient(String authUrl) {
+        this(authUrl, new ReactorClientHttpConnector());
+    }
+
     public String getAccessToken(String username, String password) {
+        return getAccessTokenMono(username, password).block();
+    }
+
+    public String refreshAccessToken(String refreshToken) {
+        return refreshAccessTokenMono(refreshToken).block();
+    }
+
+    public Mono<String> getAccessTokenMono(String username, String password) {
 
         return webClient.post()
                 .uri("/token")
@@ -29,18 +49,16 @@ public class OAuthClient {
                                 "&grant_type=password"
                 )
                 .retrieve()
-                .bodyToMono(String.class)
-                .block();
+                .bodyToMono(String.class);
     }
 
-    public String refreshAccessToken(String refreshToken) {
+    public Mono<String> refreshAccessTokenMono(String refreshToken) {
         return webClient.post()
                 .uri("/token")
                 .contentType(MediaType.APPLICATION_FORM_URLENCODED)
                 .bodyValue("client_id=external-api&grant_type=refresh_token&refresh_token=" + refreshToken)
                 .retrieve()
-                .bodyToMono(String.class)
-                .block();
+                .bodyToMono(String.class);
     }
 
 }
@@ -2,54 +2,240 @@ package net.theflapjack.fa_report.auth;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+// Hands out the current OAuth token and renews it in the background ahead of expiry, one renewal at a time
 @Component
 public class TokenManager {
 
+    private static final Logger logger = LoggerFactory.getLogger(TokenManager.class);
+
+    record TokenSnapshot(String accessToken, String refreshToken, Instant expiresAt, Instant renewAt) {
+    }
+
+    private record Credentials(String username, String password) {
+    }
+
     private final OAuthClient oauthClient;
-    private String accessToken;
-    private String refreshToken;
-    private Instant tokenExpiry;
+    private final Duration renewBefore;
+    private final Duration retryDelay;
+    private final MeterRegistry meterRegistry;
+    private final Counter refreshFailures;
+    private final Timer acquireCached;
+    private final Timer acquireRenewed;
+
+    private final AtomicReference<TokenSnapshot> current = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<TokenSnapshot>> inFlight = new AtomicReference<>();
+    private final AtomicReference<Credentials> credentials = new AtomicReference<>();
+    private final AtomicReference<ScheduledFuture<?>> scheduled = new AtomicReference<>(); // the one pending background renewal
+
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "token-renewer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final ObjectMapper mapper = new ObjectMapper();
 
-    public TokenManager(OAuthClient oauthClient) {
+    @Autowired
+    public TokenManager(OAuthClient oauthClient,
+                        MeterRegistry meterRegistry,
+                        @Value("${fa.token.renew-before:PT60S}") Duration renewBefore) {
+        this(oauthClient, meterRegistry, renewBefore, Duration.ofSeconds(5));
+    }
+
+    TokenManager(OAuthClient oauthClient, MeterRegistry meterRegistry, Duration renewBefore, Duration retryDelay) {
         this.oauthClient = oauthClient;
-        this.tokenExpiry = Instant.EPOCH;
-    }
-
-    public synchronized String getValidAccessToken(String username, String password) {
-        Instant now = Instant.now();
-
-        if (accessToken == null || tokenExpiry.isBefore(now)) {
-            if (refreshToken != null) {
-                try {
-                    System.out.println("Refreshing access token...");
-                    String response = oauthClient.refreshAccessToken(refreshToken);
-                    updateTokensFromJson(response);
-                    return accessToken;
-                } catch (Exception e) {
-                    System.out.println("Refresh failed, falling back to full login");
-                }
+        this.meterRegistry = meterRegistry;
+        this.renewBefore = renewBefore;
+        this.retryDelay = retryDelay;
+        this.refreshFailures = Counter.builder("fa.token.refresh.failures")
+                .description("Token renewals that failed completely (refresh and full login)")
+                .register(meterRegistry);
+        this.acquireCached = acquireTimer("cached");
+        this.acquireRenewed = acquireTimer("renewed");
+    }
+
+    public String getValidAccessToken(String username, String password) {
+        credentials.set(new Credentials(username, password));
+
+        long start = System.nanoTime();
+        TokenSnapshot snapshot = current.get();
+        if (isUsable(snapshot)) {
+            renewIfDue(snapshot);
+            acquireCached.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return snapshot.accessToken();
+        }
+
+        try {
+            return renew().join().accessToken();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
             }
-            String response = oauthClient.getAccessToken(username, password);
-            updateTokensFromJson(response);
+            throw new RuntimeException("Failed to obtain access token", e.getCause());
+        } finally {
+            acquireRenewed.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
+    }
+
+    // Reactive version of getValidAccessToken, never blocks the caller's thread on the OAuth server
+    public Mono<String> getValidAccessTokenMono(String username, String password) {
+        credentials.set(new Credentials(username, password));
 
-        return accessToken;
+        long start = System.nanoTime();
+        TokenSnapshot snapshot = current.get();
+        if (isUsable(snapshot)) {
+            renewIfDue(snapshot);
+            acquireCached.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return Mono.just(snapshot.accessToken());
+        }
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return Mono.fromFuture(this::renew, true)
+                    .map(TokenSnapshot::accessToken)
+                    .doFinally(signal -> sample.stop(acquireRenewed));
+        });
+    }
+
+    private boolean isUsable(TokenSnapshot snapshot) {
+        return snapshot != null && Instant.now().isBefore(snapshot.expiresAt());
+    }
+
+    // Backstop for a missed/failed scheduled renewal: the first request past renewAt kicks one off but doesn't wait for it
+    private void renewIfDue(TokenSnapshot snapshot) {
+        if (!Instant.now().isBefore(snapshot.renewAt()) && inFlight.get() == null) {
+            renew();
+        }
     }
 
-    private void updateTokensFromJson(String json) {
+    private CompletableFuture<TokenSnapshot> renew() {
+        while (true) {
+            CompletableFuture<TokenSnapshot> running = inFlight.get();
+            if (running != null) {
+                return running;
+            }
+            CompletableFuture<TokenSnapshot> mine = new CompletableFuture<>();
+            if (inFlight.compareAndSet(null, mine)) {
+                fetchSnapshot(current.get()).subscribe(
+                        snapshot -> {
+                            // publish the token before clearing inFlight so nobody starts a second renewal in between
+                            current.set(snapshot);
+                            inFlight.compareAndSet(mine, null);
+                            mine.complete(snapshot);
+                            schedule(Duration.between(Instant.now(), snapshot.renewAt()), snapshot);
+                        },
+                        error -> {
+                            logger.error("Token renewal failed", error);
+                            refreshFailures.increment();
+                            inFlight.compareAndSet(mine, null);
+                            mine.completeExceptionally(error);
+                            TokenSnapshot old = current.get();
+                            if (isUsable(old)) {
+                                schedule(retryDelay, old); // old token still works, keep trying in the background
+                            }
+                        });
+                return mine;
+            }
+        }
+    }
+
+    // Renews the token `renewing` once delay has passed, replacing whatever renewal was pending
+    private void schedule(Duration delay, TokenSnapshot renewing) {
+        if (renewer.isShutdown()) {
+            return;
+        }
+        ScheduledFuture<?> next = renewer.schedule(() -> {
+            if (credentials.get() != null && inFlight.get() == null && current.get() == renewing) {
+                renew();
+            }
+        }, Math.max(0, delay.toMillis()), TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = scheduled.getAndSet(next);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    // Uses the refresh token when there is one, falling back to a full login like before
+    private Mono<TokenSnapshot> fetchSnapshot(TokenSnapshot previous) {
+        Credentials creds = credentials.get();
+        Mono<TokenSnapshot> login = timed("password",
+                Mono.defer(() -> oauthClient.getAccessTokenMono(creds.username(), creds.password())))
+                .map(this::parseSnapshot);
+
+        if (previous == null || previous.refreshToken() == null) {
+            return login;
+        }
+        return timed("refresh", Mono.defer(() -> oauthClient.refreshAccessTokenMono(previous.refreshToken())))
+                .map(this::parseSnapshot)
+                .onErrorResume(e -> {
+                    logger.info("Refresh failed, falling back to full login");
+                    return login;
+                });
+    }
+
+    private Mono<String> timed(String grant, Mono<String> call) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return call
+                    .doOnSuccess(body -> sample.stop(refreshTimer(grant, "success")))
+                    .doOnError(e -> sample.stop(refreshTimer(grant, "failure")));
+        });
+    }
+
+    // Everything a caller waits for a token, cached means a valid one was already there, renewed that it waited on a renewal
+    private Timer acquireTimer(String source) {
+        return Timer.builder("fa.token.acquire")
+                .description("Time callers spend getting an access token")
+                .tag("source", source)
+                .register(meterRegistry);
+    }
+
+    private Timer refreshTimer(String grant, String outcome) {
+        return Timer.builder("fa.token.refresh")
+                .description("Latency of OAuth token requests")
+                .tag("grant", grant)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private TokenSnapshot parseSnapshot(String json) {
         try {
             JsonNode root = mapper.readTree(json);
-            this.accessToken = root.get("access_token").asText();
-            this.refreshToken = root.get("refresh_token").asText();
-            this.tokenExpiry = Instant.now().plusSeconds(root.get("expires_in").asLong() - 30);
+            Instant now = Instant.now();
+            Instant expiresAt = now.plusSeconds(root.get("expires_in").asLong() - 30);
+            Instant renewAt = expiresAt.minus(renewBefore);
+            return new TokenSnapshot(
+                    root.get("access_token").asText(),
+                    root.hasNonNull("refresh_token") ? root.get("refresh_token").asText() : null,
+                    expiresAt,
+                    renewAt.isBefore(now) ? now : renewAt);
         } catch (Exception e) {
             throw new RuntimeException("Failed to parse token JSON", e);
         }
     }
+
+    @PreDestroy
+    void shutdown() {
+        renewer.shutdownNow();
+    }
 }
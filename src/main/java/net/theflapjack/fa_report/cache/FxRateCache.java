@@ -0,0 +1,212 @@
+package net.theflapjack.fa_report.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Daily FX rates by (base, quote, date), shared by every report and loaded in bulk per pair and missing date range
+@Component
+public class FxRateCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(FxRateCache.class);
+
+    // Loads the rates of one pair for the inclusive date range, days FA has no rate for are simply missing
+    @FunctionalInterface
+    public interface RateLoader {
+        Mono<Map<LocalDate, Double>> load(String base, String quote, LocalDate from, LocalDate to);
+    }
+
+    // The dates a report needs rates of base in quote for
+    public record RateRange(String base, String quote, LocalDate from, LocalDate to) {
+    }
+
+    private record Pair(String base, String quote) {
+    }
+
+    private final int lookbackDays;
+    private final Duration openTtl;
+    private final int concurrency;
+    private final Clock clock;
+
+    private final Map<Pair, PairRates> pairs = new ConcurrentHashMap<>();
+    private final Set<String> currencies = ConcurrentHashMap.newKeySet();
+    private final LongAdder loads = new LongAdder();
+
+    @Autowired
+    public FxRateCache(@Value("${fa.fx.currencies:USD,EUR,GBP,JPY,AUD,CAD,CHF,CNY,SEK,NZD}") List<String> currencies,
+                       @Value("${fa.fx.lookback-days:7}") int lookbackDays,
+                       @Value("${fa.fx.open-ttl:PT15M}") Duration openTtl,
+                       @Value("${fa.fx.concurrency:4}") int concurrency) {
+        this(currencies, lookbackDays, openTtl, concurrency, Clock.systemDefaultZone());
+    }
+
+    FxRateCache(List<String> currencies, int lookbackDays, Duration openTtl, int concurrency, Clock clock) {
+        this.lookbackDays = Math.max(0, lookbackDays);
+        this.openTtl = openTtl;
+        this.concurrency = Math.max(1, concurrency);
+        this.clock = clock;
+        currencies.forEach(this::addCurrency);
+    }
+
+    // Whether a report can be asked for in this currency: the configured ones plus every currency FA has shown us
+    public boolean supports(String currency) {
+        return currency != null && currencies.contains(currency.toUpperCase(Locale.ROOT));
+    }
+
+    public Set<String> currencies() {
+        return new TreeSet<>(currencies);
+    }
+
+    // Loads the parts of the ranges that aren't cached yet, at most concurrency loader calls at a time
+    public Mono<Void> fill(Collection<RateRange> ranges, RateLoader loader) {
+        List<RateRange> missing = new ArrayList<>();
+        for (RateRange range : ranges) {
+            addCurrency(range.base());
+            if (!range.base().equals(range.quote())) {
+                PairRates rates = pairs.computeIfAbsent(new Pair(range.base(), range.quote()), pair -> new PairRates());
+                rates.missing(range, missing);
+            }
+        }
+        if (missing.isEmpty()) {
+            return Mono.empty();
+        }
+        return Flux.fromIterable(missing)
+                .flatMap(range -> {
+                    loads.increment();
+                    return loader.load(range.base(), range.quote(), range.from(), range.to())
+                            .doOnNext(rates -> store(range, rates));
+                }, concurrency)
+                .then();
+    }
+
+    // The rate of base in quote on the epoch day (or the last one before it), NaN when unknown
+    public double rate(String base, String quote, int epochDay) {
+        return rates(base, quote, epochDay, epochDay)[0];
+    }
+
+    // rate() for every day from fromDay to toDay inclusive, in one pass
+    public double[] rates(String base, String quote, int fromDay, int toDay) {
+        double[] result = new double[toDay - fromDay + 1];
+        if (base.equals(quote)) {
+            Arrays.fill(result, 1.0);
+            return result;
+        }
+        PairRates rates = pairs.get(new Pair(base, quote));
+        if (rates != null) {
+            rates.fill(fromDay, result);
+        } else {
+            Arrays.fill(result, Double.NaN);
+        }
+        return result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("pairs", pairs.size());
+        result.put("rates", pairs.values().stream().mapToLong(PairRates::size).sum());
+        result.put("loads", loads.sum());
+        result.put("currencies", currencies.size());
+        return result;
+    }
+
+    private void store(RateRange range, Map<LocalDate, Double> rates) {
+        if (!rates.isEmpty()) {
+            addCurrency(range.quote()); // FA knows it, so it can be asked for
+        }
+        pairs.get(new Pair(range.base(), range.quote())).store(range, rates, clock.instant(), LocalDate.now(clock));
+        logger.debug("Loaded {} {}/{} rates for {} to {}", rates.size(), range.base(), range.quote(), range.from(), range.to());
+    }
+
+    private void addCurrency(String currency) {
+        if (currency != null && !currency.isBlank()) {
+            currencies.add(currency.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // Rates of one pair by epoch day, plus the date range they are complete for
+    private final class PairRates {
+        private final TreeMap<Integer, Double> byDay = new TreeMap<>();
+        private LocalDate coveredFrom;
+        private LocalDate coveredTo;
+        private Instant openLoadedAt = Instant.MIN;
+
+        // Adds the pieces of the range that aren't covered yet, or have gone stale, to loads
+        synchronized void missing(RateRange range, List<RateRange> loads) {
+            LocalDate today = LocalDate.now(clock);
+            if (coveredFrom == null) {
+                loads.add(new RateRange(range.base(), range.quote(), range.from().minusDays(lookbackDays), range.to()));
+                return;
+            }
+            if (range.from().isBefore(coveredFrom)) {
+                loads.add(new RateRange(range.base(), range.quote(), range.from().minusDays(lookbackDays), coveredFrom.minusDays(1)));
+            }
+            if (range.to().isAfter(coveredTo)) {
+                loads.add(new RateRange(range.base(), range.quote(), coveredTo.plusDays(1), range.to()));
+            } else if (!range.to().isBefore(today) && !coveredTo.isBefore(today)
+                    && openLoadedAt.plus(openTtl).isBefore(clock.instant())) {
+                loads.add(new RateRange(range.base(), range.quote(), today.minusDays(lookbackDays), range.to()));
+            }
+        }
+
+        // A load that came back without a single rate doesn't count as covering its range, it is asked for again next time
+        synchronized void store(RateRange range, Map<LocalDate, Double> rates, Instant now, LocalDate today) {
+            int stored = 0;
+            for (Map.Entry<LocalDate, Double> rate : rates.entrySet()) {
+                if (rate.getValue() != null) {
+                    byDay.put((int) rate.getKey().toEpochDay(), rate.getValue());
+                    stored++;
+                }
+            }
+            if (stored == 0) {
+                return;
+            }
+            // loads reaching left start lookback early, the days before that only serve as the rate of the first days
+            LocalDate from = range.from().plusDays(lookbackDays);
+            from = from.isAfter(range.to()) ? range.to() : from;
+            coveredFrom = coveredFrom == null || from.isBefore(coveredFrom) ? from : coveredFrom;
+            coveredTo = coveredTo == null || range.to().isAfter(coveredTo) ? range.to() : coveredTo;
+            if (!range.to().isBefore(today)) {
+                openLoadedAt = now;
+            }
+        }
+
+        synchronized void fill(int fromDay, double[] result) {
+            Map.Entry<Integer, Double> floor = byDay.floorEntry(fromDay);
+            double current = floor == null ? Double.NaN : floor.getValue();
+            var later = byDay.subMap(fromDay, false, fromDay + result.length - 1, true).entrySet().iterator();
+            Map.Entry<Integer, Double> next = later.hasNext() ? later.next() : null;
+            for (int i = 0; i < result.length; i++) {
+                if (next != null && next.getKey() == fromDay + i) {
+                    current = next.getValue();
+                    next = later.hasNext() ? later.next() : null;
+                }
+                result[i] = current;
+            }
+        }
+
+        synchronized int size() {
+            return byDay.size();
+        }
+    }
+}
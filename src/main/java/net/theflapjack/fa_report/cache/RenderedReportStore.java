@@ -0,0 +1,179 @@
+package net.theflapjack.fa_report.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Finished CSV reports kept as files, bounded by their total size and tied to the TransactionBatch they came from
+@Component
+public class RenderedReportStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderedReportStore.class);
+
+    // Removed files are deleted a bit later, a response still being sent from one keeps working
+    private static final Duration DELETE_DELAY = Duration.ofSeconds(30);
+
+    @FunctionalInterface
+    public interface Renderer {
+        void render(OutputStream out) throws IOException;
+    }
+
+    // ETag is a hash of the content, so a refetch that gives the same rows keeps the client's copy valid
+    public record RenderedReport(Path file, long length, String etag, Instant lastModified) {
+    }
+
+    // targets is empty for the raw report, it has no target currency columns
+    private record Key(TransactionCacheKey transactions, boolean pretty, List<String> targets) {
+    }
+
+    private record Entry(RenderedReport report, WeakReference<TransactionBatch> source) {
+        boolean renderedFrom(TransactionBatch batch) {
+            return source.get() == batch;
+        }
+    }
+
+    private final boolean enabled;
+    private final Path directory;
+    private final Cache<Key, Entry> cache;
+
+    public RenderedReportStore(TransactionCache transactionCache,
+                               @Value("${fa.reports.store.enabled:true}") boolean enabled,
+                               @Value("${fa.reports.store.dir:${java.io.tmpdir}/fa-report/rendered}") Path directory,
+                               @Value("${fa.reports.store.max-size:256MB}") DataSize maxSize) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.toBytes())
+                .weigher((Key key, Entry entry) -> (int) Math.min(Integer.MAX_VALUE, Math.max(1, entry.report().length())))
+                .removalListener((Key key, Entry entry, RemovalCause cause) -> {
+                    if (entry != null) {
+                        deleteLater(entry.report().file());
+                    }
+                })
+                .recordStats()
+                .build();
+        if (enabled) {
+            clearDirectory();
+            transactionCache.onRemoval(this::invalidate);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // The stored report for these rows, rendered into a new file first when there is none for this batch yet
+    public RenderedReport get(TransactionCacheKey transactions, boolean pretty, List<String> targetCurrencies,
+                              TransactionBatch source, Renderer renderer) {
+        Key key = new Key(transactions, pretty, pretty ? List.copyOf(targetCurrencies) : List.of());
+        Entry stored = cache.getIfPresent(key);
+        if (stored != null && stored.renderedFrom(source) && Files.exists(stored.report().file())) {
+            return stored.report(); // the file can vanish under us, e.g. a tmp cleaner
+        }
+
+        Entry rendered = new Entry(render(renderer), new WeakReference<>(source));
+        Entry kept = cache.asMap().merge(key, rendered,
+                (existing, fresh) -> existing.renderedFrom(source) && Files.exists(existing.report().file()) ? existing : fresh);
+        if (kept != rendered) {
+            deleteLater(rendered.report().file());
+        }
+        return kept.report();
+    }
+
+    // Drops every rendering of the rows, called when the transaction cache lets go of them
+    public void invalidate(TransactionCacheKey transactions) {
+        cache.asMap().keySet().removeIf(key -> key.transactions().equals(transactions));
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("files", cache.estimatedSize());
+        result.put("bytes", cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L));
+        return result;
+    }
+
+    private RenderedReport render(Renderer renderer) {
+        Path file;
+        MessageDigest digest;
+        try {
+            file = Files.createTempFile(directory, "report-", ".csv");
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create rendered report file in " + directory, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+
+        try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024), digest)) {
+            renderer.render(out);
+        } catch (IOException e) {
+            delete(file);
+            throw new UncheckedIOException("Failed to write rendered report", e);
+        } catch (RuntimeException e) {
+            delete(file);
+            throw e;
+        }
+
+        String etag = "\"" + HexFormat.of().formatHex(digest.digest(), 0, 16) + "\"";
+        // HTTP dates have second precision, a finer Last-Modified would never match If-Modified-Since
+        return new RenderedReport(file, file.toFile().length(), etag, Instant.now().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    // Files left by a previous run aren't indexed anywhere, start from an empty directory
+    private void clearDirectory() {
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "report-*.csv")) {
+                files.forEach(RenderedReportStore::delete);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot prepare rendered report directory " + directory, e);
+        }
+    }
+
+    private static void deleteLater(Path file) {
+        CompletableFuture.runAsync(() -> delete(file),
+                CompletableFuture.delayedExecutor(DELETE_DELAY.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Failed to delete rendered report {}", file, e);
+        }
+    }
+}
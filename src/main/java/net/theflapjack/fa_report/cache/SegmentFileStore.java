@@ -0,0 +1,292 @@
+package net.theflapjack.fa_report.cache;
+
+import jakarta.annotation.PreDestroy;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+// Closed months of the segment store in one append-only file per portfolio, layout in the README
+@Component
+public class SegmentFileStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentFileStore.class);
+
+    static final int FILE_MAGIC = 0x46415347; // "FASG"
+    static final int VERSION = 2; // 2: no target currency, files are per portfolio only
+    static final int BLOCK_MAGIC = 0x424C4B31; // "BLK1"
+    private static final int FILE_HEADER = 8;
+    private static final int BLOCK_HEADER = 16;
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    private final boolean enabled;
+    private final Path directory;
+    private final double compactRatio;
+    private final Map<String, SegmentFile> files = new ConcurrentHashMap<>();
+
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder diskWrites = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    public SegmentFileStore(@Value("${fa.segments.disk.enabled:false}") boolean enabled,
+                            @Value("${fa.segments.disk.dir:data/segments}") Path directory,
+                            @Value("${fa.segments.disk.compact-ratio:0.5}") double compactRatio) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.compactRatio = compactRatio;
+        if (enabled) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create segment directory " + directory, e);
+            }
+        }
+    }
+
+    static SegmentFileStore disabled() {
+        return new SegmentFileStore(false, Path.of("."), 1.0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // The stored month or null. Disk problems are logged and treated as a miss, FA is still there
+    public TransactionBatch read(Long portfolioId, YearMonth month) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            TransactionBatch rows = file(portfolioId).read(monthIndex(month));
+            if (rows != null) {
+                diskHits.increment();
+            }
+            return rows;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to read {} of portfolio {} from disk", month, portfolioId, e);
+            return null;
+        }
+    }
+
+    public void write(Long portfolioId, YearMonth month, TransactionBatch rows) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            SegmentFile file = file(portfolioId);
+            file.append(monthIndex(month), rows.encode());
+            diskWrites.increment();
+            if (file.compactIfWasteful()) {
+                compactions.increment();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to write {} of portfolio {} to disk", month, portfolioId, e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("diskHits", diskHits.sum());
+        result.put("diskWrites", diskWrites.sum());
+        result.put("compactions", compactions.sum());
+        result.put("files", files.size());
+        return result;
+    }
+
+    @PreDestroy
+    void close() {
+        files.values().forEach(SegmentFile::close);
+        files.clear();
+    }
+
+    private SegmentFile file(Long portfolioId) throws IOException {
+        String name = "p" + portfolioId + ".seg";
+        try {
+            return files.computeIfAbsent(name, key -> {
+                try {
+                    return new SegmentFile(directory.resolve(key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static int monthIndex(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    private static int crc(ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    // One segment file: the open channel, a read-only mapping of it and where the live block of each month starts
+    final class SegmentFile {
+        private record Block(long offset, int length) {
+        }
+
+        private final Path path;
+        private FileChannel channel;
+        private MappedByteBuffer mapped;
+        private final Map<Integer, Block> blocks = new TreeMap<>();
+        private long end;
+        private long deadBytes;
+
+        SegmentFile(Path path) throws IOException {
+            this.path = path;
+            open();
+        }
+
+        synchronized TransactionBatch read(int month) throws IOException {
+            Block block = blocks.get(month);
+            if (block == null) {
+                return null;
+            }
+            if (mapped == null || block.offset() + block.length() > mapped.capacity()) {
+                remap();
+            }
+            // decoded straight out of the page cache, no read() into a heap buffer first
+            return TransactionBatch.decode(mapped.slice((int) block.offset(), block.length()));
+        }
+
+        synchronized void append(int month, ByteBuffer payload) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER)
+                    .putInt(BLOCK_MAGIC).putInt(month).putInt(payload.remaining()).putInt(crc(payload)).flip();
+            int length = payload.remaining();
+            long offset = end;
+            channel.position(offset);
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                channel.write(new ByteBuffer[]{header, payload});
+            }
+            channel.force(false);
+            end = offset + BLOCK_HEADER + length;
+
+            Block replaced = blocks.put(month, new Block(offset + BLOCK_HEADER, length));
+            if (replaced != null) {
+                deadBytes += BLOCK_HEADER + replaced.length();
+            }
+        }
+
+        // Rewrites the file with only the live blocks, in month order, then swaps it in atomically
+        synchronized boolean compactIfWasteful() throws IOException {
+            if (end < MIN_COMPACT_BYTES || deadBytes <= end * compactRatio) {
+                return false;
+            }
+            remap();
+            Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                writeFully(out, fileHeader());
+                for (Map.Entry<Integer, Block> entry : blocks.entrySet()) {
+                    Block block = entry.getValue();
+                    writeFully(out, mapped.slice((int) (block.offset() - BLOCK_HEADER), BLOCK_HEADER + block.length()));
+                }
+                out.force(true);
+            }
+            close();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            open();
+            logger.info("Compacted {} to {} bytes", path.getFileName(), end);
+            return true;
+        }
+
+        synchronized void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close {}", path, e);
+            }
+            mapped = null;
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            blocks.clear();
+            deadBytes = 0;
+            long size = channel.size();
+            if (size >= FILE_HEADER) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+                channel.read(header, 0);
+                header.flip();
+                int magic = header.getInt();
+                int version = header.getInt();
+                if (magic == FILE_MAGIC && version == VERSION) {
+                    scan(size);
+                    return;
+                }
+                logger.warn("Discarding {}: not a version {} segment file (magic {}, version {})", path.getFileName(),
+                        VERSION, Integer.toHexString(magic), version);
+            }
+            channel.truncate(0);
+            writeFully(channel, fileHeader());
+            channel.force(true);
+            end = FILE_HEADER;
+            mapped = null;
+        }
+
+        // Indexes every intact block, everything from the first bad one on is cut off
+        private void scan(long size) throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            long position = FILE_HEADER;
+            while (position + BLOCK_HEADER <= size) {
+                int magic = mapped.getInt((int) position);
+                int month = mapped.getInt((int) position + 4);
+                int length = mapped.getInt((int) position + 8);
+                int crc = mapped.getInt((int) position + 12);
+                long payload = position + BLOCK_HEADER;
+                if (magic != BLOCK_MAGIC || length < 0 || payload + length > size
+                        || crc(mapped.slice((int) payload, length)) != crc) {
+                    break;
+                }
+                Block replaced = blocks.put(month, new Block(payload, length));
+                if (replaced != null) {
+                    deadBytes += BLOCK_HEADER + replaced.length();
+                }
+                position = payload + length;
+            }
+            if (position < size) {
+                logger.warn("Truncating {} at byte {} of {}, the rest is incomplete or corrupt", path.getFileName(), position, size);
+                mapped = null;
+                channel.truncate(position);
+            }
+            end = position;
+        }
+
+        private void remap() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+
+        private static ByteBuffer fileHeader() {
+            return ByteBuffer.allocate(FILE_HEADER).putInt(FILE_MAGIC).putInt(VERSION).flip();
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
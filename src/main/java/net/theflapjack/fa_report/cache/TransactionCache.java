@@ -0,0 +1,97 @@
+package net.theflapjack.fa_report.cache;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Sits between ReportService and the GraphQL client so repeat requests (and raw vs pretty of the same report) share one fetch
+@Component
+public class TransactionCache {
+
+    private final AsyncCache<TransactionCacheKey, TransactionBatch> cache;
+    private final List<Consumer<TransactionCacheKey>> removalListeners = new CopyOnWriteArrayList<>();
+
+    public TransactionCache(@Value("${fa.cache.max-rows:1000000}") long maxRows,
+                            @Value("${fa.cache.ttl:PT5M}") Duration ttl) {
+        // Weighed by row count so one huge portfolio can't hide behind the entry count. Eviction is Caffeine's W-TinyLFU
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxRows)
+                .weigher((TransactionCacheKey key, TransactionBatch batch) -> Math.max(1, batch.size()))
+                .expireAfterWrite(ttl)
+                .removalListener((TransactionCacheKey key, TransactionBatch batch, RemovalCause cause) ->
+                        removalListeners.forEach(listener -> listener.accept(key)))
+                .recordStats()
+                .buildAsync();
+    }
+
+    // Returns the cached rows or loads them on the calling thread, concurrent misses for the same key wait on that one load
+    public TransactionBatch get(TransactionCacheKey key, Function<TransactionCacheKey, TransactionBatch> loader) {
+        CompletableFuture<TransactionBatch> load = new CompletableFuture<>();
+        CompletableFuture<TransactionBatch> shared = cache.get(key, (k, executor) -> load);
+
+        if (shared == load) {
+            try {
+                load.complete(loader.apply(key).trimToSize());
+            } catch (Throwable e) {
+                load.completeExceptionally(e); // failed loads are dropped by the cache so the next call retries
+            }
+        }
+
+        try {
+            return shared.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    // Reactive get, a miss subscribes to the loader once and every concurrent caller for the key shares its result
+    public Mono<TransactionBatch> getMono(TransactionCacheKey key, Function<TransactionCacheKey, Mono<TransactionBatch>> loader) {
+        return Mono.defer(() -> Mono.fromFuture(
+                cache.get(key, (k, executor) -> loader.apply(k).map(TransactionBatch::trimToSize).toFuture()),
+                true)); // one caller cancelling must not cancel the load the others are waiting on
+    }
+
+    // Only returns rows that are already loaded, never triggers or waits on a fetch
+    public TransactionBatch getIfPresent(TransactionCacheKey key) {
+        CompletableFuture<TransactionBatch> future = cache.getIfPresent(key);
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) {
+            return null;
+        }
+        return future.join();
+    }
+
+    // Told about every key whose rows leave the cache (expired, evicted or replaced), for anything derived from them
+    public void onRemoval(Consumer<TransactionCacheKey> listener) {
+        removalListeners.add(listener);
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.synchronous().stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("loadFailures", stats.loadFailureCount());
+        result.put("entries", cache.synchronous().estimatedSize());
+        return result;
+    }
+}
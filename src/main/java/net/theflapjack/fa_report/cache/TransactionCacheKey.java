@@ -0,0 +1,9 @@
+package net.theflapjack.fa_report.cache;
+
+// What FA is asked for in a single portfolio report, every target currency is rendered from the same rows
+public record TransactionCacheKey(Long portfolioId, String startDate, String endDate) {
+
+    public static TransactionCacheKey of(Long portfolioId, String startDate, String endDate) {
+        return new TransactionCacheKey(portfolioId, startDate, endDate);
+    }
+}
@@ -0,0 +1,221 @@
+package net.theflapjack.fa_report.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+// Each portfolio's transactions by calendar month, so a sliding date window only fetches the months it hasn't seen
+@Component
+public class TransactionSegmentStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionSegmentStore.class);
+
+    record SegmentKey(Long portfolioId, YearMonth month) {
+    }
+
+    record Segment(TransactionBatch rows, boolean closed) {
+    }
+
+    private final Cache<SegmentKey, Segment> segments;
+    private final int closedAfterDays;
+    private final Clock clock;
+    private final SegmentFileStore diskStore;
+
+    private final LongAdder segmentHits = new LongAdder();
+    private final LongAdder segmentMisses = new LongAdder();
+    private final LongAdder upstreamFetches = new LongAdder();
+
+    @Autowired
+    public TransactionSegmentStore(@Value("${fa.segments.max-rows:5000000}") long maxRows,
+                                   @Value("${fa.segments.open-ttl:PT1M}") Duration openTtl,
+                                   @Value("${fa.segments.closed-after-days:5}") int closedAfterDays,
+                                   SegmentFileStore diskStore) {
+        this(maxRows, openTtl, closedAfterDays, Clock.systemDefaultZone(), diskStore);
+    }
+
+    TransactionSegmentStore(long maxRows, Duration openTtl, int closedAfterDays, Clock clock) {
+        this(maxRows, openTtl, closedAfterDays, clock, SegmentFileStore.disabled());
+    }
+
+    TransactionSegmentStore(long maxRows, Duration openTtl, int closedAfterDays, Clock clock, SegmentFileStore diskStore) {
+        this.closedAfterDays = closedAfterDays;
+        this.clock = clock;
+        this.diskStore = diskStore;
+        this.segments = Caffeine.newBuilder()
+                .maximumWeight(maxRows)
+                .weigher((SegmentKey key, Segment segment) -> Math.max(1, segment.rows().size()))
+                .expireAfter(Expiry.creating((SegmentKey key, Segment segment) ->
+                        segment.closed() ? Duration.ofNanos(Long.MAX_VALUE) : openTtl))
+                .build();
+    }
+
+    // The transactions between start and end (inclusive), fetching only the whole months that aren't stored yet
+    public TransactionBatch get(Long portfolioId, LocalDate start, LocalDate end,
+                                BiFunction<LocalDate, LocalDate, TransactionBatch> rangeLoader) {
+        YearMonth first = YearMonth.from(start);
+        YearMonth last = YearMonth.from(end);
+
+        Map<YearMonth, TransactionBatch> months = new TreeMap<>();
+        YearMonth runStart = null;
+
+        for (YearMonth month = first; !month.isAfter(last); month = month.plusMonths(1)) {
+            Segment segment = segment(new SegmentKey(portfolioId, month));
+            if (segment != null) {
+                segmentHits.increment();
+                months.put(month, segment.rows());
+                if (runStart != null) {
+                    months.putAll(fetchRun(portfolioId, runStart, month.minusMonths(1), rangeLoader));
+                    runStart = null;
+                }
+            } else {
+                segmentMisses.increment();
+                if (runStart == null) {
+                    runStart = month;
+                }
+            }
+        }
+        if (runStart != null) {
+            months.putAll(fetchRun(portfolioId, runStart, last, rangeLoader));
+        }
+
+        // Whole months are stored, so trim the partial first/last month back to the requested dates
+        int from = (int) start.toEpochDay();
+        int to = (int) end.toEpochDay();
+        TransactionBatch result = new TransactionBatch(months.values().stream().mapToInt(TransactionBatch::size).sum());
+        for (Map.Entry<YearMonth, TransactionBatch> entry : months.entrySet()) {
+            TransactionBatch month = entry.getValue();
+            if (!entry.getKey().equals(first) && !entry.getKey().equals(last)) {
+                result.addAll(month);
+                continue;
+            }
+            int[] keep = new int[month.size()];
+            int count = 0;
+            for (int row = 0; row < month.size(); row++) {
+                if (inRange(month, row, from, to, start, end)) {
+                    keep[count++] = row;
+                }
+            }
+            result.addRows(month, keep, count);
+        }
+        return result;
+    }
+
+    private static boolean inRange(TransactionBatch batch, int row, int from, int to, LocalDate start, LocalDate end) {
+        int day = batch.transactionDay(row);
+        if (day != TransactionBatch.NO_DATE) {
+            return day >= from && day <= to;
+        }
+        // Not a plain ISO date, compared as text like before (missing/short dates are kept)
+        String date = batch.transactionDate(row);
+        return date == null || date.length() < 10
+                || (date.substring(0, 10).compareTo(start.toString()) >= 0 && date.substring(0, 10).compareTo(end.toString()) <= 0);
+    }
+
+    private Map<YearMonth, TransactionBatch> fetchRun(Long portfolioId, YearMonth from, YearMonth to,
+                                                      BiFunction<LocalDate, LocalDate, TransactionBatch> rangeLoader) {
+        logger.debug("Fetching months {}..{} for portfolio {}", from, to, portfolioId);
+        upstreamFetches.increment();
+        TransactionBatch rows = rangeLoader.apply(from.atDay(1), to.atEndOfMonth());
+
+        // Upstream filters on transactionDate so this should always be set, anything odd is kept with the first month
+        int monthCount = monthIndex(to) - monthIndex(from) + 1;
+        int[] bucket = new int[rows.size()];
+        int[] counts = new int[monthCount];
+        for (int row = 0; row < rows.size(); row++) {
+            YearMonth month = monthOf(rows, row);
+            int index = month == null ? 0 : monthIndex(month) - monthIndex(from);
+            bucket[row] = index >= 0 && index < monthCount ? index : 0;
+            counts[bucket[row]]++;
+        }
+        int[][] rowsByMonth = new int[monthCount][];
+        for (int i = 0; i < monthCount; i++) {
+            rowsByMonth[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int row = 0; row < rows.size(); row++) {
+            rowsByMonth[bucket[row]][counts[bucket[row]]++] = row;
+        }
+
+        Map<YearMonth, TransactionBatch> byMonth = new TreeMap<>();
+        for (int i = 0; i < monthCount; i++) {
+            YearMonth month = from.plusMonths(i);
+            TransactionBatch monthRows = new TransactionBatch(rowsByMonth[i].length);
+            monthRows.addRows(rows, rowsByMonth[i], rowsByMonth[i].length);
+            monthRows.trimToSize();
+            byMonth.put(month, monthRows);
+            boolean closed = isClosed(month);
+            segments.put(new SegmentKey(portfolioId, month), new Segment(monthRows, closed));
+            if (closed) {
+                diskStore.write(portfolioId, month, monthRows);
+            }
+        }
+        return byMonth;
+    }
+
+    // From memory, or for a closed month from disk (then kept in memory again)
+    private Segment segment(SegmentKey key) {
+        Segment segment = segments.getIfPresent(key);
+        if (segment != null || !diskStore.isEnabled() || !isClosed(key.month())) {
+            return segment;
+        }
+        TransactionBatch stored = diskStore.read(key.portfolioId(), key.month());
+        if (stored == null) {
+            return null;
+        }
+        segment = new Segment(stored, true);
+        segments.put(key, segment);
+        return segment;
+    }
+
+    // A month is closed once it ended more than closedAfterDays ago, late bookings are assumed to have landed by then
+    boolean isClosed(YearMonth month) {
+        return month.atEndOfMonth().plusDays(closedAfterDays).isBefore(LocalDate.now(clock));
+    }
+
+    private static int monthIndex(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    private static YearMonth monthOf(TransactionBatch batch, int row) {
+        int day = batch.transactionDay(row);
+        if (day != TransactionBatch.NO_DATE) {
+            return YearMonth.from(LocalDate.ofEpochDay(day));
+        }
+        String date = batch.transactionDate(row);
+        if (date == null || date.length() < 7) {
+            return null;
+        }
+        try {
+            return YearMonth.parse(date.substring(0, 7));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("segmentHits", segmentHits.sum());
+        result.put("segmentMisses", segmentMisses.sum());
+        result.put("upstreamFetches", upstreamFetches.sum());
+        result.put("segments", segments.estimatedSize());
+        result.put("disk", diskStore.stats());
+        return result;
+    }
+}
@@ -1,52 +1,192 @@
 package net.theflapjack.fa_report.client;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.web.reactive.function.BodyInserter;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 @Component
 public class FaGraphQLClient {
 
     private final WebClient baseClient;
+    private final UpstreamLimiter limiter;
+    private final RetryBackoffSpec retry;
+    private final MeterRegistry meterRegistry;
     private static final Logger logger = LoggerFactory.getLogger(FaGraphQLClient.class);
 
 
-    public FaGraphQLClient() {
+    // maxInMemorySize (-1 for no limit) only applies to sendQuery/sendQueryMono, which join the whole body into one String
+    public FaGraphQLClient(@Value("${fa.api.graphql-url:https://tryme.fasolutions.com/graphql}") String graphqlUrl,
+                           ClientHttpConnector faHttpConnector,
+                           @Value("${fa.http.max-in-memory-size:-1}") int maxInMemorySize,
+                           UpstreamLimiter limiter,
+                           MeterRegistry meterRegistry,
+                           @Value("${fa.upstream.max-retries:2}") int maxRetries,
+                           @Value("${fa.upstream.retry-backoff:PT0.2S}") Duration retryBackoff) {
         this.baseClient = WebClient.builder()
-                .baseUrl("https://tryme.fasolutions.com/graphql")
+                .baseUrl(graphqlUrl)
+                .clientConnector(faHttpConnector)
+                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(maxInMemorySize))
                 .defaultHeader("Content-Type", "application/json")
                 .build();
+        this.limiter = limiter;
+        this.meterRegistry = meterRegistry;
+        // Every query here only reads, so failed attempts are retried, busy rejections from the limiter are not
+        this.retry = Retry.backoff(maxRetries, retryBackoff)
+                .jitter(0.5)
+                .filter(UpstreamLimiter::isRetryable)
+                .doBeforeRetry(signal -> logger.warn("Retrying GraphQL call after: {}", signal.failure().toString()))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
 
+    public String sendQuery(GraphQLQuery query, GraphQLQuery.Variables variables, String accessToken) {
+        return sendQueryMono(query, variables, accessToken).block();
     }
 
-    public String sendQuery(String graphqlQuery, String variablesJson, String accessToken) {
-        String requestBody = """
-                {
-                  "query": "%s",
-                  "variables": %s
-                }
-            """.formatted(graphqlQuery.replace("\"", "\\\""), variablesJson);
+    // Non-blocking version of sendQuery, nothing is sent until the Mono is subscribed
+    public Mono<String> sendQueryMono(GraphQLQuery query, GraphQLQuery.Variables variables, String accessToken) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending GraphQL query to API with token ending in: {}", accessToken.substring(Math.max(0, accessToken.length() - 6)));
+        }
 
-        logger.debug("Sending GraphQL query to API with token ending in: {}", accessToken.substring(Math.max(0, accessToken.length() - 6)));
+        String operation = query.operation();
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return limiter.limit(Mono.defer(() -> baseClient.post()
+                            .uri("")
+                            .headers(headers -> headers.setBearerAuth(accessToken))
+                            .body(requestBody(query, variables))
+                            .retrieve()
+                            .bodyToMono(String.class)))
+                    .retryWhen(retry)
+                    .doOnSuccess(body -> {
+                        sample.stop(requestTimer(operation, "success"));
+                        responseBytes(operation).record(body == null ? 0 : utf8Length(body));
+                    })
+                    .doOnError(e -> sample.stop(requestTimer(operation, outcome(e))));
+        })
+                .onErrorMap(e -> !(e instanceof UpstreamBusyException), e -> {
+                    if (e instanceof WebClientResponseException responseException) {
+                        logger.error("GraphQL API error: {} - {}", responseException.getStatusCode(), responseException.getResponseBodyAsString(), e);
+                        return new RuntimeException("GraphQL call failed: " + e.getMessage(), e);
+                    }
+                    logger.error("Unexpected error in GraphQL client", e);
+                    return new RuntimeException("Unexpected GraphQL error", e);
+                });
+    }
 
-        try {
+    // Same call as sendQuery but hands back the body as it arrives instead of joining it into one String
+    public InputStream sendQueryForStream(GraphQLQuery query, GraphQLQuery.Variables variables, String accessToken) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Streaming GraphQL query to API with token ending in: {}", accessToken.substring(Math.max(0, accessToken.length() - 6)));
+        }
 
-            return baseClient.post()
-                    .uri("")
-                    .headers(headers -> headers.setBearerAuth(accessToken))
-                    .bodyValue(requestBody)
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .block();
+        // Once part of the body has been handed on, a retry would repeat it, so only failures before that are retried
+        AtomicBoolean started = new AtomicBoolean();
+        String operation = query.operation();
+        return DataBufferUtils.subscriberInputStream(
+                Flux.defer(() -> {
+                    // timed until the last buffer has arrived, so this includes however long the reader takes
+                    Timer.Sample sample = Timer.start(meterRegistry);
+                    AtomicLong bytes = new AtomicLong();
+                    return limiter.limit(Flux.defer(() -> baseClient.post()
+                                    .uri("")
+                                    .headers(headers -> headers.setBearerAuth(accessToken))
+                                    .body(requestBody(query, variables))
+                                    .retrieve()
+                                    .bodyToFlux(DataBuffer.class)))
+                            .doOnNext(buffer -> {
+                                started.set(true);
+                                bytes.addAndGet(buffer.readableByteCount());
+                            })
+                            .retryWhen(retry.filter(e -> !started.get() && UpstreamLimiter.isRetryable(e)))
+                            .doOnComplete(() -> {
+                                sample.stop(requestTimer(operation, "success"));
+                                responseBytes(operation).record(bytes.get());
+                            })
+                            .doOnError(e -> sample.stop(requestTimer(operation, outcome(e))));
+                }),
+                16);
+    }
 
-        } catch (WebClientResponseException e) {
-            logger.error("GraphQL API error: {} - {}", e.getStatusCode(), e.getResponseBodyAsString(), e);
-            throw new RuntimeException("GraphQL call failed: " + e.getMessage());
-        } catch (Exception e) {
-            logger.error("Unexpected error in GraphQL client", e);
-            throw new RuntimeException("Unexpected GraphQL error", e);
+    // Round trip of one call as the caller sees it: waiting for a limiter slot, retries and the whole body
+    private Timer requestTimer(String operation, String outcome) {
+        return Timer.builder("fa.graphql.request")
+                .description("Latency of FA GraphQL calls")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private DistributionSummary responseBytes(String operation) {
+        return DistributionSummary.builder("fa.graphql.response.bytes")
+                .description("Size of FA GraphQL response bodies")
+                .baseUnit("bytes")
+                .tag("operation", operation)
+                .register(meterRegistry);
+    }
+
+    private static String outcome(Throwable e) {
+        return e instanceof UpstreamBusyException ? "busy" : "failure";
+    }
+
+    // Encoded size of the body without encoding it again
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
         }
+        return length;
+    }
+
+    // Writes the body on every attempt straight into a buffer of the connection's pooled allocator
+    private static BodyInserter<Void, ClientHttpRequest> requestBody(GraphQLQuery query, GraphQLQuery.Variables variables) {
+        return (request, context) -> {
+            DataBuffer buffer = request.bufferFactory().allocateBuffer(query.bodySizeHint());
+            try (OutputStream out = buffer.asOutputStream()) {
+                query.writeBody(variables, out);
+            } catch (IOException e) {
+                DataBufferUtils.release(buffer);
+                return Mono.error(new UncheckedIOException("Failed to write " + query.operation() + " request", e));
+            } catch (RuntimeException e) {
+                DataBufferUtils.release(buffer);
+                return Mono.error(e);
+            }
+            request.getHeaders().setContentLength(buffer.readableByteCount());
+            return request.writeWith(Mono.just(buffer));
+        };
     }
 }
@@ -0,0 +1,49 @@
+package net.theflapjack.fa_report.client;
+
+// Every query the app sends to FA, prepared (minified and pre-encoded, see GraphQLQuery) once when the class loads
+public final class FaQueries {
+
+    // Transactions of a set of portfolios, with the USD rate of each. Target currencies come from FX_RATES
+    public static final GraphQLQuery TRANSACTIONS = GraphQLQuery.of("""
+            query Transactions($ids: [Long], $startDate: String, $endDate: String) {
+              portfoliosByIds(ids: $ids) {
+                transactions(status: "OK", startDate: $startDate, endDate: $endDate) {
+                  portfolio: parentPortfolio {
+                    shortName
+                  }
+                  security {
+                    name
+                    isinCode
+                  }
+                  currency {
+                    code: securityCode
+                  }
+                  quantity: amount
+                  unitPrice: unitPriceView
+                  tradeAmount
+                  type {
+                    name: typeName
+                  }
+                  transactionDate
+                  settlementDate
+                  fxUSD: fxRate(quoteCurrency: "USD")
+                }
+              }
+            }
+        """);
+
+    // Daily rates of one currency pair, for FxRateCache. Not yet checked against FA's real schema
+    public static final GraphQLQuery FX_RATES = GraphQLQuery.of("""
+            query FxRates($currency: String, $quoteCurrency: String, $startDate: String, $endDate: String) {
+              currencyByCode(currencyCode: $currency) {
+                fxRates(quoteCurrency: $quoteCurrency, startDate: $startDate, endDate: $endDate) {
+                  date
+                  rate
+                }
+              }
+            }
+        """);
+
+    private FaQueries() {
+    }
+}
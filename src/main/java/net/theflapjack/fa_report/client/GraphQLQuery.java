@@ -0,0 +1,124 @@
+package net.theflapjack.fa_report.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A GraphQL query minified and encoded once as the start of every request body, shared by every request
+public final class GraphQLQuery {
+
+    // Writes the fields of the variables object, the braces around them are written for it
+    @FunctionalInterface
+    public interface Variables {
+        void write(JsonGenerator json) throws IOException;
+    }
+
+    // Room left in a request buffer for the variables, a batch of ids is the only thing that gets long
+    private static final int VARIABLES_SIZE_HINT = 256;
+
+    // close() of a generator must leave both the request buffer and the unfinished body open
+    private static final JsonFactory JSON = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .disable(StreamWriteFeature.AUTO_CLOSE_CONTENT)
+            .build();
+    private static final Pattern OPERATION = Pattern.compile("^\\s*(?:query|mutation)\\s+(\\w+)");
+
+    private final String operation;
+    private final String text;
+    private final byte[] bodyStart;
+
+    private GraphQLQuery(String operation, String text, byte[] bodyStart) {
+        this.operation = operation;
+        this.text = text;
+        this.bodyStart = bodyStart;
+    }
+
+    public static GraphQLQuery of(String query) {
+        String text = minify(query);
+        Matcher matcher = OPERATION.matcher(text);
+        String operation = matcher.find() ? matcher.group(1) : "anonymous";
+
+        ByteArrayOutputStream start = new ByteArrayOutputStream(text.length() + 32);
+        try (JsonGenerator json = JSON.createGenerator(start)) {
+            json.writeStartObject();
+            json.writeStringField("query", text);
+            json.writeFieldName("variables");
+            json.writeRaw(':');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new GraphQLQuery(operation, text, start.toByteArray());
+    }
+
+    // The operation name of "query Transactions(...)", a fixed set so it's safe as a metrics tag
+    public String operation() {
+        return operation;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    int bodySizeHint() {
+        return bodyStart.length + VARIABLES_SIZE_HINT;
+    }
+
+    // The whole request body: the prepared start, the variables object and the closing brace
+    public void writeBody(Variables variables, OutputStream out) throws IOException {
+        out.write(bodyStart);
+        try (JsonGenerator json = JSON.createGenerator(out)) {
+            json.writeStartObject();
+            if (variables != null) {
+                variables.write(json);
+            }
+            json.writeEndObject();
+        }
+        out.write('}');
+    }
+
+    // Drops comments and the whitespace GraphQL doesn't need, string literals are kept as they are
+    static String minify(String query) {
+        StringBuilder out = new StringBuilder(query.length());
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '"') {
+                if (space && !out.isEmpty() && isNameChar(out.charAt(out.length() - 1))) {
+                    out.append(' ');
+                }
+                space = false;
+                int end = i + 1;
+                while (end < query.length() && query.charAt(end) != '"') {
+                    end += query.charAt(end) == '\\' ? 2 : 1;
+                }
+                out.append(query, i, Math.min(end + 1, query.length()));
+                i = end;
+            } else if (c == '#') {
+                while (i + 1 < query.length() && query.charAt(i + 1) != '\n') {
+                    i++;
+                }
+                space = true;
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && !out.isEmpty() && isNameChar(out.charAt(out.length() - 1)) && isNameChar(c)) {
+                    out.append(' ');
+                }
+                space = false;
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,28 @@
+package net.theflapjack.fa_report.client;
+
+import java.time.Duration;
+
+// Thrown instead of calling FA when too many calls are already in flight and waiting, the controller turns it into a 503
+public class UpstreamBusyException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public UpstreamBusyException(String message, Duration retryAfter) {
+        super(message, null, false, false); // fast path under load, the stack trace would never be read
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    // The busy exception anywhere in the cause chain (the caches and block() can wrap it), or null
+    public static UpstreamBusyException find(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof UpstreamBusyException busy) {
+                return busy;
+            }
+        }
+        return null;
+    }
+}
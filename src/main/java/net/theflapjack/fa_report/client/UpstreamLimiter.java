@@ -0,0 +1,215 @@
+package net.theflapjack.fa_report.client;
+
+import io.netty.handler.timeout.ReadTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Caps the GraphQL calls in flight to FA with an AIMD limit, calls over it wait in a bounded queue
+@Component
+public class UpstreamLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamLimiter.class);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private final double backoffRatio;
+    private final int maxQueue;
+    private final Duration queueTimeout;
+    private final Duration retryAfter;
+
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private long rejected;
+    private final ArrayDeque<MonoSink<Permit>> waiting = new ArrayDeque<>();
+
+    public UpstreamLimiter(@Value("${fa.upstream.initial-limit:10}") int initialLimit,
+                           @Value("${fa.upstream.min-limit:1}") int minLimit,
+                           @Value("${fa.upstream.max-limit:100}") int maxLimit,
+                           @Value("${fa.upstream.latency-target:PT2S}") Duration latencyTarget,
+                           @Value("${fa.upstream.backoff-ratio:0.75}") double backoffRatio,
+                           @Value("${fa.upstream.max-queue:200}") int maxQueue,
+                           @Value("${fa.upstream.queue-timeout:PT10S}") Duration queueTimeout,
+                           @Value("${fa.upstream.retry-after:PT2S}") Duration retryAfter) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.latencyTargetNanos = latencyTarget.toNanos();
+        this.backoffRatio = backoffRatio;
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+        this.retryAfter = retryAfter;
+        this.lastDecrease = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    }
+
+    // Runs the call once a slot is free and holds the slot until the call completes, errors or is cancelled
+    public <T> Flux<T> limit(Flux<T> call) {
+        return acquire().flatMapMany(permit -> call
+                .doOnEach(signal -> {
+                    if (signal.isOnNext() || signal.isOnComplete()) {
+                        permit.succeeded();
+                    } else if (signal.isOnError()) {
+                        permit.failed(signal.getThrowable());
+                    }
+                })
+                .doFinally(signal -> permit.release()));
+    }
+
+    public <T> Mono<T> limit(Mono<T> call) {
+        return limit(call.flux()).singleOrEmpty();
+    }
+
+    // Worth another try later: FA said it's overloaded, or the connection failed / timed out before an answer
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof WebClientResponseException response) {
+            int status = response.getStatusCode().value();
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+        return error instanceof WebClientRequestException || isTimeout(error);
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("limit", (int) limit);
+        stats.put("inFlight", inFlight);
+        stats.put("waiting", waiting.size());
+        stats.put("rejected", rejected);
+        return stats;
+    }
+
+    synchronized int currentLimit() {
+        return (int) limit;
+    }
+
+    private Mono<Permit> acquire() {
+        return Mono.<Permit>create(sink -> {
+            synchronized (this) {
+                if (inFlight < (int) limit) {
+                    inFlight++;
+                    sink.success(new Permit());
+                    return;
+                }
+                if (waiting.size() >= maxQueue) {
+                    rejected++;
+                    sink.error(busy("FA call queue is full"));
+                    return;
+                }
+                waiting.add(sink);
+            }
+            sink.onCancel(() -> forget(sink));
+            sink.onDispose(Schedulers.parallel().schedule(() -> expire(sink), queueTimeout.toNanos(), TimeUnit.NANOSECONDS));
+        }).doOnDiscard(Permit.class, Permit::release); // handed out after the caller went away
+    }
+
+    private synchronized void forget(MonoSink<Permit> sink) {
+        waiting.remove(sink);
+    }
+
+    private void expire(MonoSink<Permit> sink) {
+        synchronized (this) {
+            if (!waiting.remove(sink)) {
+                return; // got its slot in the meantime
+            }
+            rejected++;
+        }
+        sink.error(busy("Timed out waiting for a free FA call slot"));
+    }
+
+    private UpstreamBusyException busy(String message) {
+        return new UpstreamBusyException(message, retryAfter);
+    }
+
+    // Frees the slot and hands it (and any room the limit gained) to whoever has waited longest
+    private void released() {
+        List<MonoSink<Permit>> granted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                inFlight++;
+                granted.add(waiting.poll());
+            }
+        }
+        granted.forEach(sink -> sink.success(new Permit()));
+    }
+
+    private synchronized void onSample(long latencyNanos) {
+        if (latencyNanos > latencyTargetNanos) {
+            decrease(latencyNanos);
+        } else if (inFlight >= limit / 2) { // only grow when the limit is actually being used
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    // At most one cut per round trip, otherwise one slow burst would take the limit straight down to the minimum
+    private synchronized void decrease(long latencyNanos) {
+        long now = System.nanoTime();
+        if (now - lastDecrease < latencyNanos) {
+            return;
+        }
+        lastDecrease = now;
+        double before = limit;
+        limit = Math.max(minLimit, limit * backoffRatio);
+        if ((int) before != (int) limit) {
+            logger.info("FA looks overloaded, lowering concurrent calls from {} to {}", (int) before, (int) limit);
+        }
+    }
+
+    private static boolean isTimeout(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof ReadTimeoutException || e instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Permit {
+        private final long started = System.nanoTime();
+        private boolean sampled;
+        private boolean released;
+
+        void succeeded() {
+            if (!sampled) {
+                sampled = true;
+                onSample(System.nanoTime() - started);
+            }
+        }
+
+        void failed(Throwable error) {
+            if (!sampled) {
+                sampled = true;
+                if (isRetryable(error)) {
+                    decrease(System.nanoTime() - started);
+                }
+            }
+        }
+
+        void release() {
+            synchronized (UpstreamLimiter.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            released();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.theflapjack.fa_report.config;
+
+import io.netty.channel.ChannelOption;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+
+// One pooled Reactor Netty client shared by the OAuth and GraphQL calls, its pool gauges published as "fa"
+@Configuration
+public class FaHttpClientConfig {
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider faConnectionProvider(
+            @Value("${fa.http.max-connections:100}") int maxConnections,
+            @Value("${fa.http.pending-acquire-max:2000}") int pendingAcquireMax,
+            @Value("${fa.http.pending-acquire-timeout:PT45S}") Duration pendingAcquireTimeout,
+            @Value("${fa.http.max-idle-time:PT30S}") Duration maxIdleTime,
+            @Value("${fa.http.max-life-time:PT5M}") Duration maxLifeTime
+    ) {
+        return ConnectionProvider.builder("fa")
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMax)
+                .pendingAcquireTimeout(pendingAcquireTimeout)
+                .maxIdleTime(maxIdleTime)
+                .maxLifeTime(maxLifeTime)
+                .evictInBackground(maxIdleTime) // idle connections are closed even when nobody is asking for one
+                .metrics(true)
+                .build();
+    }
+
+    @Bean
+    public HttpClient faHttpClient(
+            ConnectionProvider faConnectionProvider,
+            @Value("${fa.http.connect-timeout:PT5S}") Duration connectTimeout,
+            @Value("${fa.http.read-timeout:PT60S}") Duration readTimeout,
+            @Value("${fa.http.compress:true}") boolean compress,
+            @Value("${fa.http.http2:true}") boolean http2
+    ) {
+        HttpClient client = HttpClient.create(faConnectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, Math.toIntExact(connectTimeout.toMillis()))
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .keepAlive(true)
+                .responseTimeout(readTimeout) // longest gap between two reads of a response, not the whole download
+                .compress(compress);
+        // HTTP/2 is negotiated over TLS (ALPN), plain http endpoints like a local stub stay on HTTP/1.1
+        return http2 ? client.protocol(HttpProtocol.H2, HttpProtocol.HTTP11) : client;
+    }
+
+    @Bean
+    public ReactorClientHttpConnector faHttpConnector(HttpClient faHttpClient) {
+        return new ReactorClientHttpConnector(faHttpClient);
+    }
+}
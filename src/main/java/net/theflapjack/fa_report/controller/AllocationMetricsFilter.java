@@ -0,0 +1,81 @@
+package net.theflapjack.fa_report.controller;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import net.theflapjack.fa_report.service.ReportMetrics;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Bytes the request thread allocated while handling /report or /report/summary, as fa.report.allocated
+@Component
+public class AllocationMetricsFilter extends OncePerRequestFilter {
+
+    private final ReportMetrics metrics;
+    private final com.sun.management.ThreadMXBean threads;
+
+    public AllocationMetricsFilter(ReportMetrics metrics) {
+        this.metrics = metrics;
+        this.threads = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return threads == null || !(path.equals("/report") || path.startsWith("/report/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long before = threads.getCurrentThreadAllocatedBytes();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            long after = threads.getCurrentThreadAllocatedBytes();
+            if (before >= 0 && after >= before && !request.isAsyncStarted()) {
+                metrics.allocated(endpoint(request), mode(request), currency(request, response), after - before);
+            }
+        }
+    }
+
+    // The mapping's pattern (/report/jobs/{id} not every id) so the tag stays a small set
+    private static String endpoint(HttpServletRequest request) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern != null ? pattern.toString() : "unmapped";
+    }
+
+    private static String mode(HttpServletRequest request) {
+        if (request.getRequestURI().endsWith("/summary")) {
+            return "summary";
+        }
+        return ReportMetrics.mode(Boolean.parseBoolean(request.getParameter("pretty")));
+    }
+
+    // Rejected requests can carry any text here, so they aren't tagged with it
+    private static String currency(HttpServletRequest request, HttpServletResponse response) {
+        if (response.getStatus() >= 400) {
+            return "invalid";
+        }
+        String[] values = request.getParameterValues("targetCurrency");
+        if (values == null) {
+            return "USD";
+        }
+        List<String> currencies = Arrays.stream(values)
+                .flatMap(value -> Arrays.stream(value.split(",")))
+                .map(value -> value.trim().toUpperCase(Locale.ROOT))
+                .filter(value -> !value.isEmpty())
+                .distinct()
+                .toList();
+        return currencies.isEmpty() ? "USD" : ReportMetrics.currency(currencies);
+    }
+}
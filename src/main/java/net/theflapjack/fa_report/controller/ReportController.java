@@ -1,86 +1,439 @@
 package net.theflapjack.fa_report.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import net.theflapjack.fa_report.cache.FxRateCache;
+import net.theflapjack.fa_report.cache.RenderedReportStore;
+import net.theflapjack.fa_report.cache.TransactionCache;
+import net.theflapjack.fa_report.cache.TransactionSegmentStore;
 import net.theflapjack.fa_report.client.FaGraphQLClient;
+import net.theflapjack.fa_report.client.UpstreamBusyException;
+import net.theflapjack.fa_report.client.UpstreamLimiter;
+import net.theflapjack.fa_report.model.ReportJobStatus;
+import net.theflapjack.fa_report.service.JobRejectedException;
+import net.theflapjack.fa_report.service.ReportFormat;
+import net.theflapjack.fa_report.service.ReportJobService;
+import net.theflapjack.fa_report.service.ReportMetrics;
 import net.theflapjack.fa_report.service.ReportService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Mono;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Principal;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.time.LocalDate;
 import java.util.List;
-import java.util.Set;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 
 @RestController
 @RequestMapping("/report")
 public class ReportController {
 
     private final ReportService reportService;
+    private final TransactionCache transactionCache;
+    private final TransactionSegmentStore segmentStore;
+    private final RenderedReportStore renderedReports;
+    private final ReportJobService reportJobService;
+    private final FxRateCache fxRateCache;
+    private final ReportMetrics metrics;
+    private final UpstreamLimiter limiter;
     private static final Logger logger = LoggerFactory.getLogger(ReportController.class);
 
     private static final DateTimeFormatter ISO_DATE = DateTimeFormatter.ISO_DATE;
+    private static final MediaType CSV_UTF8 = MediaType.parseMediaType("text/csv;charset=UTF-8");
 
-    private static final Set<String> VALID_CURRENCIES = Set.of(
-            "USD", "EUR", "GBP", "JPY", "AUD", "CAD", "CHF", "CNY", "SEK", "NZD"
-    );
+    // Tomcat's sendfile request attributes, set instead of writing a body the connector copies the file itself
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
 
-    public ReportController(ReportService reportService){
+    private static final String JOB_RETRY_AFTER_SECONDS = "30";
+    private static final String INVALID_FORMAT = "Invalid format. Must be one of csv, gzip, columnar.";
+
+    public ReportController(ReportService reportService, TransactionCache transactionCache,
+                            TransactionSegmentStore segmentStore, RenderedReportStore renderedReports,
+                            ReportJobService reportJobService, FxRateCache fxRateCache, ReportMetrics metrics,
+                            UpstreamLimiter limiter){
         this.reportService = reportService;
+        this.transactionCache = transactionCache;
+        this.segmentStore = segmentStore;
+        this.renderedReports = renderedReports;
+        this.reportJobService = reportJobService;
+        this.fxRateCache = fxRateCache;
+        this.metrics = metrics;
+        this.limiter = limiter;
     }
 
+    // Served from the rendered-report store when it's on, so a repeat request is a file send (or a 304) not a render
     @GetMapping
-    public ResponseEntity<String> getReport(
+    public ResponseEntity<?> getReport(
             @RequestParam(required = true) Long portfolioId,
             @RequestParam(required = false) String startDate,
             @RequestParam(required = false) String endDate,
             @RequestParam(defaultValue = "false") boolean pretty,
-            @RequestParam(defaultValue = "USD") String targetCurrency
+            @RequestParam(defaultValue = "USD") List<String> targetCurrency,
+            @RequestParam(required = false) String format,
+            ServletWebRequest request
     ) {
         try {
-            // Check dates if provided
-            LocalDate start = null;
-            LocalDate end = null;
-
-            if (startDate != null) {
-                start = LocalDate.parse(startDate, ISO_DATE);
-            }
-            if (endDate != null) {
-                end = LocalDate.parse(endDate, ISO_DATE);
+            String invalid = validateRequest(startDate, endDate, targetCurrency);
+            if (invalid != null) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(invalid);
             }
-
-            if (start != null && end != null && end.isBefore(start)) {
+            // the other formats are written as a stream, which this endpoint's cached files and 304s aren't
+            if (format != null && ReportFormat.resolve(format, null) != ReportFormat.CSV) {
                 return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body("endDate must not be before startDate.");
+                        .body("format=" + format + " is served by /report/stream and /report/batch, /report is CSV only.");
             }
 
-            // Check target currency (I haven't verified each currency in the list works just the first few)
-            if (!VALID_CURRENCIES.contains(targetCurrency.toUpperCase())) {
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body("Invalid targetCurrency. Accepted values are: " + VALID_CURRENCIES);
+            String csvName = String.format("portfolio_%d_%s.csv", portfolioId, pretty ? "summary" : "raw");
+
+            RenderedReportStore.RenderedReport rendered = reportService.renderReport(portfolioId, startDate, endDate, targets(targetCurrency), pretty);
+            if (rendered != null) {
+                return sendRendered(rendered, csvName, request);
             }
 
             String transactionCSV = pretty
-                    ? reportService.generateHumanCsv(portfolioId, startDate, endDate, targetCurrency)
-                    : reportService.generateCsv(portfolioId, startDate, endDate, targetCurrency);
-
-            String csvName = String.format("portfolio_%d_%s.csv", portfolioId, pretty ? "summary" : "raw");
+                    ? reportService.generateHumanCsv(portfolioId, startDate, endDate, targets(targetCurrency))
+                    : reportService.generateCsv(portfolioId, startDate, endDate);
 
             return ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + csvName)
                     .contentType(MediaType.parseMediaType("text/csv"))
                     .body(transactionCSV);
 
-        } catch (DateTimeParseException e) {
-            logger.warn("Invalid date format", e);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Dates must be in ISO format (YYYY-MM-DD).");
         } catch (Exception e) {
+            metrics.error(ReportMetrics.mode(pretty), e);
+            UpstreamBusyException busy = UpstreamBusyException.find(e);
+            if (busy != null) {
+                return upstreamBusy(busy);
+            }
             logger.error("Failed to generate report", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error generating report");
         }
     }
+
+    // 304 when the client's copy is still current, otherwise the file goes out with sendfile or as a Resource
+    private ResponseEntity<?> sendRendered(RenderedReportStore.RenderedReport rendered, String csvName, ServletWebRequest request) {
+        // Revalidate every time rather than Spring Security's no-store, which would make the validators useless
+        request.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().cachePrivate().getHeaderValue());
+        if (request.checkNotModified(rendered.etag(), rendered.lastModified().toEpochMilli())) {
+            return null; // status and validators are already set on the response
+        }
+
+        return sendFile(rendered.file(), rendered.length(), csvName, request);
+    }
+
+    private static ResponseEntity<?> sendFile(Path file, long length, String csvName, ServletWebRequest request) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + csvName)
+                .contentType(CSV_UTF8)
+                .contentLength(length);
+
+        HttpServletRequest servletRequest = request.getRequest();
+        if (Boolean.TRUE.equals(servletRequest.getAttribute(SENDFILE_SUPPORTED)) && "GET".equals(servletRequest.getMethod())) {
+            servletRequest.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            servletRequest.setAttribute(SENDFILE_START, 0L);
+            servletRequest.setAttribute(SENDFILE_END, length);
+            return response.build();
+        }
+        return response.body(new FileSystemResource(file));
+    }
+
+    // Big exports as a background job, answered straight away with 202, the job's id and where to poll (getJob)
+    @PostMapping("/jobs")
+    public ResponseEntity<?> submitJob(
+            @RequestParam(required = true) Long portfolioId,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate,
+            @RequestParam(defaultValue = "false") boolean pretty,
+            @RequestParam(defaultValue = "USD") List<String> targetCurrency,
+            Principal principal
+    ) {
+        String invalid = validateRequest(startDate, endDate, targetCurrency);
+        if (invalid != null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(invalid);
+        }
+
+        try {
+            String user = principal == null ? "anonymous" : principal.getName();
+            ReportJobStatus job = reportJobService.submit(user, portfolioId, startDate, endDate, targets(targetCurrency), pretty);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/report/jobs/" + job.id()))
+                    .body(job);
+        } catch (JobRejectedException e) {
+            logger.warn("Rejected report job: {}", e.getMessage());
+            HttpStatus status = e.getReason() == JobRejectedException.Reason.USER_QUOTA
+                    ? HttpStatus.TOO_MANY_REQUESTS
+                    : HttpStatus.SERVICE_UNAVAILABLE;
+            return ResponseEntity.status(status)
+                    .header(HttpHeaders.RETRY_AFTER, JOB_RETRY_AFTER_SECONDS)
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(e.getMessage());
+        }
+    }
+
+    // 202 with the rows processed so far while the job is queued or running, the CSV once it's done, 500 if it failed
+    @GetMapping("/jobs/{id}")
+    public ResponseEntity<?> getJob(@PathVariable String id, ServletWebRequest request) {
+        ReportJobStatus job = reportJobService.status(id);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        return switch (job.state()) {
+            case DONE -> {
+                Path file = reportJobService.result(id);
+                if (file == null) {
+                    yield ResponseEntity.notFound().build(); // purged since the status was read
+                }
+                try {
+                    yield sendFile(file, Files.size(file), "report_" + id + ".csv", request);
+                } catch (IOException e) {
+                    logger.error("Failed to read result of report job {}", id, e);
+                    yield ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error reading report");
+                }
+            }
+            case FAILED -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(job);
+            default -> ResponseEntity.accepted()
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .body(job);
+        };
+    }
+
+    // Same report as getReport but nothing blocks, the servlet thread is released while FA is being called
+    @GetMapping("/reactive")
+    public Mono<ResponseEntity<String>> getReportReactive(
+            @RequestParam(required = true) Long portfolioId,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate,
+            @RequestParam(defaultValue = "false") boolean pretty,
+            @RequestParam(defaultValue = "USD") List<String> targetCurrency
+    ) {
+        String invalid = validateRequest(startDate, endDate, targetCurrency);
+        if (invalid != null) {
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(invalid));
+        }
+
+        Mono<String> transactionCSV = pretty
+                ? reportService.generateHumanCsvMono(portfolioId, startDate, endDate, targets(targetCurrency))
+                : reportService.generateCsvMono(portfolioId, startDate, endDate);
+
+        String csvName = String.format("portfolio_%d_%s.csv", portfolioId, pretty ? "summary" : "raw");
+
+        return transactionCSV
+                .map(csv -> ResponseEntity.ok()
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + csvName)
+                        .contentType(MediaType.parseMediaType("text/csv"))
+                        .body(csv))
+                .onErrorResume(e -> {
+                    metrics.error(ReportMetrics.mode(pretty), e);
+                    UpstreamBusyException busy = UpstreamBusyException.find(e);
+                    if (busy != null) {
+                        return Mono.just(upstreamBusy(busy));
+                    }
+                    logger.error("Failed to generate report", e);
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error generating report"));
+                });
+    }
+
+    // Same report as getReport, but rows are written to the response while the upstream body is still being read
+    @GetMapping("/stream")
+    public ResponseEntity<StreamingResponseBody> streamReport(
+            @RequestParam(required = true) Long portfolioId,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate,
+            @RequestParam(defaultValue = "false") boolean pretty,
+            @RequestParam(defaultValue = "USD") List<String> targetCurrency,
+            @RequestParam(required = false) String format,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept
+    ) {
+        String invalid = validateRequest(startDate, endDate, targetCurrency);
+        if (invalid != null) {
+            return badRequest(invalid);
+        }
+        ReportFormat reportFormat = ReportFormat.resolve(format, accept);
+        if (reportFormat == null) {
+            return badRequest(INVALID_FORMAT);
+        }
+
+        StreamingResponseBody body = out -> {
+            try {
+                if (pretty) {
+                    reportService.streamHumanCsv(portfolioId, startDate, endDate, targets(targetCurrency), reportFormat, out);
+                } else {
+                    reportService.streamCsv(portfolioId, startDate, endDate, reportFormat, out);
+                }
+            } catch (Exception e) {
+                metrics.error(ReportMetrics.mode(pretty), e);
+                // Headers are already sent at this point so all we can do is log and cut the response short
+                logger.error("Failed to stream report", e);
+                throw e;
+            }
+        };
+
+        String fileName = String.format("portfolio_%d_%s.%s", portfolioId, pretty ? "summary" : "raw", reportFormat.extension());
+
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileName)
+                .contentType(reportFormat.mediaType())
+                .body(body);
+    }
+
+    // One combined CSV for many portfolios, e.g. /report/batch?portfolioIds=1,2,3
+    @GetMapping("/batch")
+    public ResponseEntity<StreamingResponseBody> getBatchReport(
+            @RequestParam(required = true) List<Long> portfolioIds,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate,
+            @RequestParam(defaultValue = "false") boolean pretty,
+            @RequestParam(defaultValue = "USD") List<String> targetCurrency,
+            @RequestParam(required = false) String format,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept
+    ) {
+        List<Long> ids = portfolioIds.stream().filter(Objects::nonNull).distinct().toList();
+        if (ids.isEmpty()) {
+            return badRequest("portfolioIds must contain at least one id.");
+        }
+
+        String invalid = validateRequest(startDate, endDate, targetCurrency);
+        if (invalid != null) {
+            return badRequest(invalid);
+        }
+        ReportFormat reportFormat = ReportFormat.resolve(format, accept);
+        if (reportFormat == null) {
+            return badRequest(INVALID_FORMAT);
+        }
+
+        StreamingResponseBody body = out -> {
+            try {
+                reportService.streamBatchCsv(ids, startDate, endDate, targets(targetCurrency), pretty, reportFormat, out);
+            } catch (Exception e) {
+                metrics.error(ReportMetrics.mode(pretty), e);
+                logger.error("Failed to stream batch report", e);
+                throw e;
+            }
+        };
+
+        String fileName = String.format("portfolios_batch_%d_%s.%s", ids.size(), pretty ? "summary" : "raw", reportFormat.extension());
+
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileName)
+                .contentType(reportFormat.mediaType())
+                .body(body);
+    }
+
+    // Just the cash flow totals (plus per type/month/currency breakdowns) as JSON, aggregated while FA's response streams in
+    @GetMapping("/summary")
+    public ResponseEntity<?> getSummary(
+            @RequestParam(required = true) Long portfolioId,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate,
+            @RequestParam(defaultValue = "USD") List<String> targetCurrency
+    ) {
+        try {
+            String invalid = validateRequest(startDate, endDate, targetCurrency);
+            if (invalid != null) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(invalid);
+            }
+
+            // the summary is in USD, targetCurrency is still validated so a bad one isn't silently accepted
+            return ResponseEntity.ok(reportService.summarize(portfolioId, startDate, endDate));
+
+        } catch (Exception e) {
+            metrics.error("summary", e);
+            UpstreamBusyException busy = UpstreamBusyException.find(e);
+            if (busy != null) {
+                return upstreamBusy(busy);
+            }
+            logger.error("Failed to generate summary", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error generating summary");
+        }
+    }
+
+    // Streaming endpoints have to declare ResponseEntity<StreamingResponseBody> for Spring to stream them, so errors go out the same way
+    private static ResponseEntity<StreamingResponseBody> badRequest(String message) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(out -> out.write(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Too many FA calls already in flight and queued, the client should come back later rather than wait here
+    @ExceptionHandler(UpstreamBusyException.class)
+    public ResponseEntity<String> upstreamBusy(UpstreamBusyException e) {
+        logger.warn("Rejected report request: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfter().toSeconds())))
+                .contentType(MediaType.TEXT_PLAIN)
+                .body("FA is busy, please retry later.");
+    }
+
+    // Hit/miss/eviction counters of the caches and the FA call limiter's limit, in flight, queued and rejected calls
+    @GetMapping("/cache/stats")
+    public Map<String, Object> getCacheStats() {
+        return Map.of(
+                "transactions", transactionCache.stats(),
+                "segments", segmentStore.stats(),
+                "rendered", renderedReports.stats(),
+                "fx", fxRateCache.stats(),
+                "upstream", limiter.stats()
+        );
+    }
+
+    // Returns the message for a 400 response, or null when the parameters are fine
+    private String validateRequest(String startDate, String endDate, List<String> targetCurrency) {
+        try {
+            // Check dates if provided
+            LocalDate start = null;
+            LocalDate end = null;
+
+            if (startDate != null) {
+                start = LocalDate.parse(startDate, ISO_DATE);
+            }
+            if (endDate != null) {
+                end = LocalDate.parse(endDate, ISO_DATE);
+            }
+
+            if (start != null && end != null && end.isBefore(start)) {
+                return "endDate must not be before startDate.";
+            }
+        } catch (DateTimeParseException e) {
+            logger.warn("Invalid date format", e);
+            return "Dates must be in ISO format (YYYY-MM-DD).";
+        }
+
+        // Check target currencies, e.g. targetCurrency=EUR,GBP, against the configured ones and those FA has sent rates for
+        List<String> targets = targets(targetCurrency);
+        if (targets.isEmpty() || !targets.stream().allMatch(fxRateCache::supports)) {
+            return "Invalid targetCurrency. Accepted values are: " + fxRateCache.currencies();
+        }
+        return null;
+    }
+
+    // Upper case, without blanks and repeats, in the order asked for
+    private static List<String> targets(List<String> targetCurrency) {
+        return targetCurrency.stream()
+                .filter(Objects::nonNull)
+                .map(currency -> currency.trim().toUpperCase(Locale.ROOT))
+                .filter(currency -> !currency.isEmpty())
+                .distinct()
+                .toList();
+    }
 }
@@ -0,0 +1,19 @@
+package net.theflapjack.fa_report.model;
+
+import java.time.Instant;
+
+// Body of POST /report/jobs and of GET /report/jobs/{id} while the job hasn't finished (or has failed)
+public record ReportJobStatus(
+        String id,
+        State state,
+        long rowsProcessed,
+        Instant submitted,
+        Instant started,
+        Instant finished,
+        String error
+) {
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+}
@@ -0,0 +1,17 @@
+package net.theflapjack.fa_report.model;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+// Body of /report/summary: the pretty report's Summary (USD) footer plus breakdowns, amounts rounded to cents
+public record ReportSummary(
+        long transactions,
+        Flow total,
+        Map<String, Flow> byType,
+        Map<String, Flow> byMonth,
+        Map<String, Flow> byCurrency
+) {
+
+    public record Flow(BigDecimal cashIn, BigDecimal cashOut, BigDecimal netFlow) {
+    }
+}
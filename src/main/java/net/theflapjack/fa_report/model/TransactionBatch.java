@@ -0,0 +1,499 @@
+package net.theflapjack.fa_report.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+// FlatTransaction rows as one array per column, repeating strings stored as int codes into a per-column dictionary
+public final class TransactionBatch {
+
+    // transactionDay/settlementDay for a missing date
+    public static final int NO_DATE = Integer.MIN_VALUE;
+
+    // Dates that aren't plain yyyy-MM-dd are kept verbatim, their dictionary code is stored below every real epoch day
+    private static final int ODD_DATE_BASE = Integer.MIN_VALUE + 1;
+    private static final int MIN_EPOCH_DAY = (int) LocalDate.of(0, 1, 1).toEpochDay();
+
+    private final Dictionary portfolios = new Dictionary();
+    private final Dictionary securities = new Dictionary();
+    private final Dictionary isins = new Dictionary();
+    private final Dictionary currencies = new Dictionary();
+    private final Dictionary types = new Dictionary();
+    private final Dictionary oddDates = new Dictionary();
+
+    private int size;
+
+    private int[] portfolio;
+    private int[] security;
+    private int[] isin;
+    private int[] currency;
+    private int[] type;
+    private int[] transactionDay;
+    private int[] settlementDay;
+
+    private double[] quantity;
+    private double[] unitPrice;
+    private double[] tradeAmount;
+    private double[] notionalPriceUSD;
+    private double[] targetFXValue;
+    private double[] notionalPriceTarget;
+
+    public TransactionBatch() {
+        this(256);
+    }
+
+    public TransactionBatch(int initialCapacity) {
+        allocate(Math.max(16, initialCapacity));
+    }
+
+    public static TransactionBatch of(List<FlatTransaction> transactions) {
+        TransactionBatch batch = new TransactionBatch(transactions.size());
+        for (FlatTransaction tx : transactions) {
+            batch.add(tx);
+        }
+        return batch;
+    }
+
+    public int add(String portfolioShortName, String securityName, String securityISIN, String currencyCode,
+                   double quantity, double unitPrice, double tradeAmount, String typeName,
+                   String transactionDate, String settlementDate,
+                   double notionalPriceUSD, double targetFXValue, double notionalPriceTarget) {
+        if (size == this.quantity.length) {
+            grow(Math.max(16, size * 2));
+        }
+        int row = size++;
+        this.portfolio[row] = portfolios.code(portfolioShortName);
+        this.security[row] = securities.code(securityName);
+        this.isin[row] = isins.code(securityISIN);
+        this.currency[row] = currencies.code(currencyCode);
+        this.type[row] = types.code(typeName);
+        this.transactionDay[row] = encodeDate(transactionDate);
+        this.settlementDay[row] = encodeDate(settlementDate);
+        this.quantity[row] = quantity;
+        this.unitPrice[row] = unitPrice;
+        this.tradeAmount[row] = tradeAmount;
+        this.notionalPriceUSD[row] = notionalPriceUSD;
+        this.targetFXValue[row] = targetFXValue;
+        this.notionalPriceTarget[row] = notionalPriceTarget;
+        return row;
+    }
+
+    // Missing numbers become 0.0, the same thing the GraphQL parser does
+    public int add(FlatTransaction tx) {
+        return add(tx.getPortfolioShortName(), tx.getSecurityName(), tx.getSecurityISIN(), tx.getCurrencyCode(),
+                orZero(tx.getQuantity()), orZero(tx.getUnitPrice()), orZero(tx.getTradeAmount()), tx.getTypeName(),
+                tx.getTransactionDate(), tx.getSettlementDate(),
+                orZero(tx.getNotionalPriceUSD()), orZero(tx.getTargetFXValue()), orZero(tx.getNotionalPriceTarget()));
+    }
+
+    // Copies the given rows of another batch, translating dictionary codes once per distinct value
+    public void addRows(TransactionBatch source, int[] rows, int count) {
+        int[] portfolioCodes = unmapped(source.portfolios);
+        int[] securityCodes = unmapped(source.securities);
+        int[] isinCodes = unmapped(source.isins);
+        int[] currencyCodes = unmapped(source.currencies);
+        int[] typeCodes = unmapped(source.types);
+
+        if (size + count > quantity.length) {
+            grow(Math.max(size * 2, size + count));
+        }
+        for (int i = 0; i < count; i++) {
+            int from = rows[i];
+            int row = size++;
+            portfolio[row] = translate(portfolioCodes, source.portfolio[from], source.portfolios, portfolios);
+            security[row] = translate(securityCodes, source.security[from], source.securities, securities);
+            isin[row] = translate(isinCodes, source.isin[from], source.isins, isins);
+            currency[row] = translate(currencyCodes, source.currency[from], source.currencies, currencies);
+            type[row] = translate(typeCodes, source.type[from], source.types, types);
+            transactionDay[row] = copyDate(source, source.transactionDay[from]);
+            settlementDay[row] = copyDate(source, source.settlementDay[from]);
+            quantity[row] = source.quantity[from];
+            unitPrice[row] = source.unitPrice[from];
+            tradeAmount[row] = source.tradeAmount[from];
+            notionalPriceUSD[row] = source.notionalPriceUSD[from];
+            targetFXValue[row] = source.targetFXValue[from];
+            notionalPriceTarget[row] = source.notionalPriceTarget[from];
+        }
+    }
+
+    public void addAll(TransactionBatch source) {
+        int[] rows = new int[source.size];
+        Arrays.setAll(rows, i -> i);
+        addRows(source, rows, rows.length);
+    }
+
+    // Drops the rows and their dictionaries but keeps the arrays, used to reuse one batch as a buffer while streaming
+    public void clear() {
+        size = 0;
+        for (Dictionary dictionary : dictionaries()) {
+            dictionary.clear();
+        }
+    }
+
+    // Shrinks the arrays to the row count, done before a batch is cached
+    public TransactionBatch trimToSize() {
+        if (size < quantity.length) {
+            grow(size);
+        }
+        return this;
+    }
+
+    // Binary form of the batch for the on-disk segment files, decoded with bulk array copies
+    public ByteBuffer encode() {
+        Dictionary[] dictionaries = dictionaries();
+        byte[][][] values = new byte[dictionaries.length][][];
+        long length = 4 + (long) size * (7 * Integer.BYTES + 6 * Double.BYTES);
+        for (int d = 0; d < dictionaries.length; d++) {
+            values[d] = new byte[dictionaries[d].size()][];
+            length += 4;
+            for (int code = 0; code < values[d].length; code++) {
+                String value = dictionaries[d].value(code);
+                values[d][code] = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+                length += 4 + (value == null ? 0 : values[d][code].length);
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(length));
+        out.putInt(size);
+        for (byte[][] dictionary : values) {
+            out.putInt(dictionary.length);
+            for (byte[] value : dictionary) {
+                out.putInt(value == null ? -1 : value.length);
+                if (value != null) {
+                    out.put(value);
+                }
+            }
+        }
+        for (int[] column : intColumns()) {
+            out.asIntBuffer().put(column, 0, size);
+            out.position(out.position() + size * Integer.BYTES);
+        }
+        for (double[] column : doubleColumns()) {
+            out.asDoubleBuffer().put(column, 0, size);
+            out.position(out.position() + size * Double.BYTES);
+        }
+        return out.flip();
+    }
+
+    // Reads what encode() wrote, from the buffer's position on (e.g. a slice of a memory mapped file)
+    public static TransactionBatch decode(ByteBuffer in) {
+        int rows = in.getInt();
+        TransactionBatch batch = new TransactionBatch(rows);
+        for (Dictionary dictionary : batch.dictionaries()) {
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt();
+                String value = null;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    in.get(bytes);
+                    value = new String(bytes, StandardCharsets.UTF_8);
+                }
+                dictionary.code(value);
+            }
+        }
+        for (int[] column : batch.intColumns()) {
+            in.asIntBuffer().get(column, 0, rows);
+            in.position(in.position() + rows * Integer.BYTES);
+        }
+        for (double[] column : batch.doubleColumns()) {
+            in.asDoubleBuffer().get(column, 0, rows);
+            in.position(in.position() + rows * Double.BYTES);
+        }
+        batch.size = rows;
+        return batch;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String portfolioShortName(int row) {
+        return portfolios.value(portfolio[row]);
+    }
+
+    public String securityName(int row) {
+        return securities.value(security[row]);
+    }
+
+    public String securityISIN(int row) {
+        return isins.value(isin[row]);
+    }
+
+    public String currencyCode(int row) {
+        return currencies.value(currency[row]);
+    }
+
+    // Dictionary id of the row's currency (currencyCode() is already the ISO code itself), between 0 and currencyCount()
+    public int currencyId(int row) {
+        return currency[row];
+    }
+
+    public int currencyCount() {
+        return currencies.size();
+    }
+
+    public String currencyOf(int id) {
+        return currencies.value(id);
+    }
+
+    public String typeName(int row) {
+        return types.value(type[row]);
+    }
+
+    // Code of the row's type, between 0 and typeCount(), so callers can precompute per type lookups
+    public int typeCode(int row) {
+        return type[row];
+    }
+
+    public int typeCount() {
+        return types.size();
+    }
+
+    public String typeNameOf(int code) {
+        return types.value(code);
+    }
+
+    public double quantity(int row) {
+        return quantity[row];
+    }
+
+    public double unitPrice(int row) {
+        return unitPrice[row];
+    }
+
+    public double tradeAmount(int row) {
+        return tradeAmount[row];
+    }
+
+    public double notionalPriceUSD(int row) {
+        return notionalPriceUSD[row];
+    }
+
+    public double targetFXValue(int row) {
+        return targetFXValue[row];
+    }
+
+    public double notionalPriceTarget(int row) {
+        return notionalPriceTarget[row];
+    }
+
+    // Epoch day of the transaction date, NO_DATE when it is missing or isn't a plain ISO date
+    public int transactionDay(int row) {
+        return dayOrNoDate(transactionDay[row]);
+    }
+
+    public int settlementDay(int row) {
+        return dayOrNoDate(settlementDay[row]);
+    }
+
+    // The dates exactly as they came in, rebuilt from the epoch day when they were plain ISO dates
+    public String transactionDate(int row) {
+        return decodeDate(transactionDay[row]);
+    }
+
+    public String settlementDate(int row) {
+        return decodeDate(settlementDay[row]);
+    }
+
+    public FlatTransaction get(int row) {
+        return new FlatTransaction(
+                portfolioShortName(row),
+                securityName(row),
+                securityISIN(row),
+                currencyCode(row),
+                quantity[row],
+                unitPrice[row],
+                tradeAmount[row],
+                typeName(row),
+                transactionDate(row),
+                settlementDate(row),
+                notionalPriceUSD[row],
+                targetFXValue[row],
+                notionalPriceTarget[row]);
+    }
+
+    // Read-only List view for code that still works with FlatTransaction, every get() builds a fresh (detached) object
+    public List<FlatTransaction> asList() {
+        return new View();
+    }
+
+    // yyyy-MM-dd to an epoch day, or NO_DATE unless the text is exactly a canonical date
+    public static int epochDay(String iso) {
+        if (iso == null || iso.length() != 10 || iso.charAt(4) != '-' || iso.charAt(7) != '-') {
+            return NO_DATE;
+        }
+        int year = digits(iso, 0, 4);
+        int month = digits(iso, 5, 2);
+        int day = digits(iso, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1) {
+            return NO_DATE;
+        }
+        try {
+            return (int) LocalDate.of(year, month, day).toEpochDay();
+        } catch (DateTimeException e) {
+            return NO_DATE; // e.g. 2023-02-30
+        }
+    }
+
+    private int encodeDate(String date) {
+        if (date == null) {
+            return NO_DATE;
+        }
+        int day = epochDay(date);
+        return day != NO_DATE ? day : ODD_DATE_BASE + oddDates.code(date);
+    }
+
+    private String decodeDate(int encoded) {
+        if (encoded >= MIN_EPOCH_DAY) {
+            return LocalDate.ofEpochDay(encoded).toString();
+        }
+        if (encoded == NO_DATE) {
+            return null;
+        }
+        return oddDates.value(encoded - ODD_DATE_BASE);
+    }
+
+    private static int dayOrNoDate(int encoded) {
+        return encoded >= MIN_EPOCH_DAY ? encoded : NO_DATE;
+    }
+
+    private int copyDate(TransactionBatch source, int encoded) {
+        if (encoded >= MIN_EPOCH_DAY || encoded == NO_DATE) {
+            return encoded;
+        }
+        return ODD_DATE_BASE + oddDates.code(source.oddDates.value(encoded - ODD_DATE_BASE));
+    }
+
+    private static int[] unmapped(Dictionary from) {
+        int[] codes = new int[from.size()];
+        Arrays.fill(codes, -1);
+        return codes;
+    }
+
+    private static int translate(int[] codes, int code, Dictionary from, Dictionary to) {
+        int mapped = codes[code];
+        if (mapped < 0) {
+            mapped = to.code(from.value(code));
+            codes[code] = mapped;
+        }
+        return mapped;
+    }
+
+    private static int digits(String s, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static double orZero(Double value) {
+        return value != null ? value : 0.0;
+    }
+
+    // Fixed order of the encoded form, new columns go at the end (with a new file format version)
+    private Dictionary[] dictionaries() {
+        return new Dictionary[]{portfolios, securities, isins, currencies, types, oddDates};
+    }
+
+    private int[][] intColumns() {
+        return new int[][]{portfolio, security, isin, currency, type, transactionDay, settlementDay};
+    }
+
+    private double[][] doubleColumns() {
+        return new double[][]{quantity, unitPrice, tradeAmount, notionalPriceUSD, targetFXValue, notionalPriceTarget};
+    }
+
+    private void allocate(int capacity) {
+        portfolio = new int[capacity];
+        security = new int[capacity];
+        isin = new int[capacity];
+        currency = new int[capacity];
+        type = new int[capacity];
+        transactionDay = new int[capacity];
+        settlementDay = new int[capacity];
+        quantity = new double[capacity];
+        unitPrice = new double[capacity];
+        tradeAmount = new double[capacity];
+        notionalPriceUSD = new double[capacity];
+        targetFXValue = new double[capacity];
+        notionalPriceTarget = new double[capacity];
+    }
+
+    private void grow(int capacity) {
+        portfolio = Arrays.copyOf(portfolio, capacity);
+        security = Arrays.copyOf(security, capacity);
+        isin = Arrays.copyOf(isin, capacity);
+        currency = Arrays.copyOf(currency, capacity);
+        type = Arrays.copyOf(type, capacity);
+        transactionDay = Arrays.copyOf(transactionDay, capacity);
+        settlementDay = Arrays.copyOf(settlementDay, capacity);
+        quantity = Arrays.copyOf(quantity, capacity);
+        unitPrice = Arrays.copyOf(unitPrice, capacity);
+        tradeAmount = Arrays.copyOf(tradeAmount, capacity);
+        notionalPriceUSD = Arrays.copyOf(notionalPriceUSD, capacity);
+        targetFXValue = Arrays.copyOf(targetFXValue, capacity);
+        notionalPriceTarget = Arrays.copyOf(notionalPriceTarget, capacity);
+    }
+
+    // Append-only string <-> code table, null is a value like any other
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int code(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        String value(int code) {
+            return values.get(code);
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        void clear() {
+            codes.clear();
+            values.clear();
+        }
+    }
+
+    private final class View extends AbstractList<FlatTransaction> implements RandomAccess {
+        @Override
+        public FlatTransaction get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return TransactionBatch.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.theflapjack.fa_report.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Which FA transaction types count as cash in or cash out in the report summaries, from fa.cashflow.in/out
+@Component
+public class CashFlowClassifier {
+
+    private static final Logger logger = LoggerFactory.getLogger(CashFlowClassifier.class);
+
+    // The types the report has always used, kept as the defaults
+    static final String DEFAULT_IN = "Cashflow in,Deposit,Cashflow in (internal),Sell,Redemption,Expire";
+    static final String DEFAULT_OUT = "Buy,Cashflow out,Cashflow out (internal),Management fee,Subscription,Exercise subscription right (C)";
+
+    public static final byte IN = 1;
+    public static final byte OUT = -1;
+    public static final byte NONE = 0;
+
+    private final Map<String, Byte> directions = new HashMap<>();
+
+    public CashFlowClassifier(@Value("${fa.cashflow.in:" + DEFAULT_IN + "}") List<String> cashIn,
+                              @Value("${fa.cashflow.out:" + DEFAULT_OUT + "}") List<String> cashOut) {
+        for (String type : cashOut) {
+            directions.put(normalize(type.trim()), OUT);
+        }
+        for (String type : cashIn) {
+            if (directions.put(normalize(type.trim()), IN) != null) {
+                logger.warn("Transaction type '{}' is configured as both cash in and cash out, counting it as cash in", type);
+            }
+        }
+    }
+
+    static CashFlowClassifier defaults() {
+        return new CashFlowClassifier(List.of(DEFAULT_IN.split(",")), List.of(DEFAULT_OUT.split(",")));
+    }
+
+    // IN, OUT or NONE for a type name, case-insensitive
+    public byte classify(String typeName) {
+        return directions.getOrDefault(normalize(typeName), NONE);
+    }
+
+    private static String normalize(String typeName) {
+        return typeName == null ? "" : typeName.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,216 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.TransactionBatch;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Cash in/out totals (USD notionals) of a set of rows, split per currency, type and optionally month in one pass
+final class CashFlowSummary {
+
+    record Flow(double cashIn, double cashOut) {
+        double net() {
+            return cashIn - cashOut;
+        }
+
+        Flow plus(Flow other) {
+            return new Flow(cashIn + other.cashIn, cashOut + other.cashOut);
+        }
+    }
+
+    private static final int NO_MONTH = Integer.MIN_VALUE;
+
+    private final TransactionBatch batch;
+    private final CashFlowClassifier classifier;
+    private final boolean trackMonths;
+
+    private long rows;
+    private double cashIn;
+    private double cashOut;
+    private byte[] directions = new byte[0];
+    private double[] byType = new double[0]; // a type only ever moves cash one way, so one sum per type is enough
+    private double[] inByCurrency = new double[0];
+    private double[] outByCurrency = new double[0];
+    private final Map<Integer, double[]> byMonth = new TreeMap<>();
+    private final SortedMap<String, Flow> clearedCurrencies = new TreeMap<>();
+    private final SortedMap<String, Flow> clearedTypes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    private int lastMonth = NO_MONTH;
+    private double[] lastMonthFlow;
+
+    CashFlowSummary(TransactionBatch batch, CashFlowClassifier classifier) {
+        this(batch, classifier, false);
+    }
+
+    CashFlowSummary(TransactionBatch batch, CashFlowClassifier classifier, boolean trackMonths) {
+        this.batch = batch;
+        this.classifier = classifier;
+        this.trackMonths = trackMonths;
+    }
+
+    void add(int row) {
+        rows++;
+        int type = batch.typeCode(row);
+        if (type >= directions.length) {
+            growTypes();
+        }
+        byte direction = directions[type];
+        if (direction == CashFlowClassifier.NONE) {
+            return;
+        }
+
+        int currency = batch.currencyId(row);
+        if (currency >= inByCurrency.length) {
+            growCurrencies();
+        }
+        double amount = batch.notionalPriceUSD(row);
+        byType[type] += amount;
+        double[] month = trackMonths ? monthFlow(batch.transactionDay(row)) : null;
+        if (direction == CashFlowClassifier.IN) {
+            cashIn += amount;
+            inByCurrency[currency] += amount;
+            if (month != null) {
+                month[0] += amount;
+            }
+        } else {
+            cashOut += amount;
+            outByCurrency[currency] += amount;
+            if (month != null) {
+                month[1] += amount;
+            }
+        }
+    }
+
+    void merge(CashFlowSummary other) {
+        rows += other.rows;
+        cashIn += other.cashIn;
+        cashOut += other.cashOut;
+        if (other.directions.length > directions.length) {
+            growTypes();
+        }
+        if (other.inByCurrency.length > inByCurrency.length) {
+            growCurrencies();
+        }
+        for (int i = 0; i < other.byType.length; i++) {
+            byType[i] += other.byType[i];
+        }
+        for (int i = 0; i < other.inByCurrency.length; i++) {
+            inByCurrency[i] += other.inByCurrency[i];
+            outByCurrency[i] += other.outByCurrency[i];
+        }
+        other.clearedCurrencies.forEach((currency, flow) -> clearedCurrencies.merge(currency, flow, Flow::plus));
+        other.clearedTypes.forEach((type, flow) -> clearedTypes.merge(type, flow, Flow::plus));
+        other.byMonth.forEach((month, flow) -> {
+            double[] mine = byMonth.computeIfAbsent(month, key -> new double[2]);
+            mine[0] += flow[0];
+            mine[1] += flow[1];
+        });
+    }
+
+    // Moves the per code sums over to names, called right before the batch is cleared since clear() starts its codes over
+    void beforeClear() {
+        addCurrencies(clearedCurrencies);
+        addTypes(clearedTypes);
+        directions = new byte[0];
+        byType = new double[0];
+        inByCurrency = new double[0];
+        outByCurrency = new double[0];
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    Flow total() {
+        return new Flow(cashIn, cashOut);
+    }
+
+    // Currencies that had any cash in or out, sorted by code
+    Map<String, Flow> byCurrency() {
+        Map<String, Flow> result = new TreeMap<>(clearedCurrencies);
+        addCurrencies(result);
+        return result;
+    }
+
+    // Types that count as cash in or out, sorted by name
+    Map<String, Flow> byType() {
+        Map<String, Flow> result = new TreeMap<>(clearedTypes); // the copy keeps the case-insensitive order
+        addTypes(result);
+        return result;
+    }
+
+    // yyyy-MM of the transaction date in order, rows without a plain date are under "unknown" at the end
+    Map<String, Flow> byMonth() {
+        Map<String, Flow> result = new LinkedHashMap<>();
+        double[] unknown = null;
+        for (Map.Entry<Integer, double[]> entry : byMonth.entrySet()) {
+            if (entry.getKey() == NO_MONTH) {
+                unknown = entry.getValue();
+                continue;
+            }
+            int month = entry.getKey();
+            result.put(YearMonth.of(Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1).toString(),
+                    new Flow(entry.getValue()[0], entry.getValue()[1]));
+        }
+        if (unknown != null) {
+            result.put("unknown", new Flow(unknown[0], unknown[1]));
+        }
+        return result;
+    }
+
+    // Rows tend to come grouped by date, so the last month's sums are kept at hand
+    private double[] monthFlow(int epochDay) {
+        int month = NO_MONTH;
+        if (epochDay != TransactionBatch.NO_DATE) {
+            LocalDate date = LocalDate.ofEpochDay(epochDay);
+            month = date.getYear() * 12 + date.getMonthValue() - 1;
+        }
+        if (month != lastMonth || lastMonthFlow == null) {
+            lastMonth = month;
+            lastMonthFlow = byMonth.computeIfAbsent(month, key -> new double[2]);
+        }
+        return lastMonthFlow;
+    }
+
+    private void addCurrencies(Map<String, Flow> result) {
+        for (int id = 0; id < inByCurrency.length; id++) {
+            if (inByCurrency[id] != 0.0 || outByCurrency[id] != 0.0) {
+                result.merge(nameOrEmpty(batch.currencyOf(id)), new Flow(inByCurrency[id], outByCurrency[id]), Flow::plus);
+            }
+        }
+    }
+
+    private void addTypes(Map<String, Flow> result) {
+        for (int code = 0; code < byType.length; code++) {
+            byte direction = directions[code];
+            if (direction == CashFlowClassifier.NONE) {
+                continue;
+            }
+            Flow flow = direction == CashFlowClassifier.IN ? new Flow(byType[code], 0.0) : new Flow(0.0, byType[code]);
+            result.merge(nameOrEmpty(batch.typeNameOf(code)), flow, Flow::plus);
+        }
+    }
+
+    private void growTypes() {
+        int known = directions.length;
+        directions = Arrays.copyOf(directions, batch.typeCount());
+        byType = Arrays.copyOf(byType, batch.typeCount());
+        for (int code = known; code < directions.length; code++) {
+            directions[code] = classifier.classify(batch.typeNameOf(code));
+        }
+    }
+
+    private void growCurrencies() {
+        inByCurrency = Arrays.copyOf(inByCurrency, batch.currencyCount());
+        outByCurrency = Arrays.copyOf(outByCurrency, batch.currencyCount());
+    }
+
+    private static String nameOrEmpty(String name) {
+        return name == null ? "" : name;
+    }
+}
@@ -0,0 +1,172 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.TransactionBatch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes report rows as typed columns instead of text, layout in the README. One instance per report
+final class ColumnarEncoder {
+
+    static final int MAGIC = 0x4641434C; // "FACL"
+    static final int VERSION = 1;
+    static final byte TEXT = 1;
+    static final byte FLOAT64 = 2;
+    static final byte DATE = 3;
+
+    // Rows per block when a whole batch is written at once, streamed rows go out one buffer at a time
+    static final int BLOCK_ROWS = 65536;
+
+    @FunctionalInterface
+    interface TextValue {
+        String of(TransactionBatch tx, int row);
+    }
+
+    @FunctionalInterface
+    interface NumberValue {
+        double of(TransactionBatch tx, int row);
+    }
+
+    @FunctionalInterface
+    interface DateValue {
+        int of(TransactionBatch tx, int row);
+    }
+
+    // One column of the layout and how to read its value out of a row
+    record Column(String name, byte type, TextValue text, NumberValue number, DateValue date) {
+        static Column text(String name, TextValue value) {
+            return new Column(name, TEXT, value, null, null);
+        }
+
+        static Column number(String name, NumberValue value) {
+            return new Column(name, FLOAT64, null, value, null);
+        }
+
+        static Column date(String name, DateValue value) {
+            return new Column(name, DATE, null, null, value);
+        }
+    }
+
+    private final DataOutputStream out;
+    private ByteBuffer scratch = ByteBuffer.allocate(BLOCK_ROWS * Double.BYTES);
+
+    ColumnarEncoder(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+    }
+
+    void header(List<Column> columns) {
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(columns.size());
+            for (Column column : columns) {
+                out.writeByte(column.type());
+                string(column.name());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Rows from..to of tx, or order[from..to) when an order is given, in blocks of at most BLOCK_ROWS
+    void rows(List<Column> columns, TransactionBatch tx, int[] order, int from, int to) {
+        for (int start = from; start < to; start += BLOCK_ROWS) {
+            block(columns, tx, order, start, Math.min(to, start + BLOCK_ROWS));
+        }
+    }
+
+    void end() {
+        try {
+            out.writeInt(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        flush();
+    }
+
+    void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void block(List<Column> columns, TransactionBatch tx, int[] order, int from, int to) {
+        int count = to - from;
+        try {
+            out.writeInt(count);
+            ByteBuffer values = scratch(count * Double.BYTES);
+            for (Column column : columns) {
+                values.clear();
+                switch (column.type()) {
+                    case TEXT -> {
+                        textColumn(column.text(), tx, order, from, to, values);
+                        continue;
+                    }
+                    case FLOAT64 -> {
+                        for (int i = from; i < to; i++) {
+                            values.putDouble(column.number().of(tx, order == null ? i : order[i]));
+                        }
+                    }
+                    default -> {
+                        for (int i = from; i < to; i++) {
+                            values.putInt(column.date().of(tx, order == null ? i : order[i]));
+                        }
+                    }
+                }
+                out.write(values.array(), 0, values.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The block's own dictionary first, then the codes
+    private void textColumn(TextValue value, TransactionBatch tx, int[] order, int from, int to, ByteBuffer codes)
+            throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> values = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            String text = value.of(tx, order == null ? i : order[i]);
+            Integer code = dictionary.get(text);
+            if (code == null) {
+                code = values.size();
+                dictionary.put(text, code);
+                values.add(text);
+            }
+            codes.putInt(code);
+        }
+        out.writeInt(values.size());
+        for (String text : values) {
+            string(text);
+        }
+        out.write(codes.array(), 0, codes.position());
+    }
+
+    private void string(String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private ByteBuffer scratch(int bytes) {
+        if (scratch.capacity() < bytes) {
+            scratch = ByteBuffer.allocate(bytes);
+        }
+        return scratch;
+    }
+}
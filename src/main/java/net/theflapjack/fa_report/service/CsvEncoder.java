@@ -0,0 +1,309 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.TransactionBatch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Writes CSV straight into a reusable char buffer, numbers byte-identical to the old formatters. One instance per report
+final class CsvEncoder {
+
+    private static final int FAST_PATH_LIMIT = 1_000_000_000; // below this, v * 100 is accurate enough to spot ties
+    private static final double TIE_MARGIN = 1e-4;
+
+    // The old report's patterns pinned to Locale.ROOT, only reached for values near a rounding tie or out of range
+    private static final ThreadLocal<DecimalFormat> MONEY = ThreadLocal.withInitial(
+            () -> new DecimalFormat("0.00", DecimalFormatSymbols.getInstance(Locale.ROOT)));
+    private static final ThreadLocal<DecimalFormat> HUMAN_MONEY = ThreadLocal.withInitial(
+            () -> new DecimalFormat("$#,##0.00", DecimalFormatSymbols.getInstance(Locale.ROOT)));
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MMM-yyyy", Locale.US);
+    private static final long YEAR_ONE = LocalDate.of(1, 1, 1).toEpochDay(); // "yyyy" is year of era, so year 0 prints as 0001
+    private static final String[] MONTHS = new String[13];
+
+    static {
+        DateTimeFormatter month = DateTimeFormatter.ofPattern("MMM", Locale.US);
+        for (int m = 1; m <= 12; m++) {
+            MONTHS[m] = LocalDate.of(2000, m, 1).format(month);
+        }
+    }
+
+    private final Writer out;
+    private char[] buf;
+    private int pos;
+
+    // Buffered in front of a Writer, flushed whenever the buffer fills up
+    CsvEncoder(Writer out) {
+        this.out = out;
+        this.buf = new char[8192];
+    }
+
+    // Accumulates everything in memory, read it back with toString()
+    CsvEncoder(int initialCapacity) {
+        this.out = null;
+        this.buf = new char[Math.max(64, initialCapacity)];
+    }
+
+    CsvEncoder raw(String s) {
+        int length = s.length();
+        ensure(length);
+        s.getChars(0, length, buf, pos);
+        pos += length;
+        return this;
+    }
+
+    CsvEncoder raw(char c) {
+        ensure(1);
+        buf[pos++] = c;
+        return this;
+    }
+
+    // Appends what another (in memory) encoder has accumulated, big chunks go straight to the Writer without being copied
+    CsvEncoder append(CsvEncoder other) {
+        if (out != null && other.pos > buf.length) {
+            try {
+                out.write(buf, 0, pos);
+                pos = 0;
+                out.write(other.buf, 0, other.pos);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+        ensure(other.pos);
+        System.arraycopy(other.buf, 0, buf, pos, other.pos);
+        pos += other.pos;
+        return this;
+    }
+
+    int length() {
+        return pos;
+    }
+
+    CsvEncoder comma() {
+        return raw(',');
+    }
+
+    CsvEncoder newline() {
+        return raw('\n');
+    }
+
+    // RFC 4180: quoted (with doubled quotes) only when the value has a comma, quote or line break, null is empty
+    CsvEncoder field(String s) {
+        if (s == null) {
+            return this;
+        }
+        int length = s.length();
+        boolean quote = false;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            return raw(s);
+        }
+        ensure(length * 2 + 2);
+        buf[pos++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                buf[pos++] = '"';
+            }
+            buf[pos++] = c;
+        }
+        buf[pos++] = '"';
+        return this;
+    }
+
+    // Same output as String.format(Locale.ROOT, "%.2f", v) (HALF_UP on the shortest decimal representation)
+    CsvEncoder fixed2(double v) {
+        long cents = fastCents(v);
+        if (cents < 0) {
+            return raw(String.format(Locale.ROOT, "%.2f", v));
+        }
+        return sign(v).cents(cents, false);
+    }
+
+    // Same output as DecimalFormat("0.00"), null is empty
+    CsvEncoder money(Double v) {
+        return v == null ? this : money(v.doubleValue());
+    }
+
+    // Same output as DecimalFormat("0.00") (HALF_EVEN on the exact binary value)
+    CsvEncoder money(double v) {
+        long cents = fastCents(v);
+        if (cents < 0) {
+            return raw(MONEY.get().format(v));
+        }
+        return sign(v).cents(cents, false);
+    }
+
+    // Same output as DecimalFormat("$#,##0.00")
+    CsvEncoder humanMoney(double v) {
+        long cents = fastCents(v);
+        if (cents < 0) {
+            return raw(HUMAN_MONEY.get().format(v));
+        }
+        return sign(v).raw('$').cents(cents, true);
+    }
+
+    // yyyy-MM-dd -> dd-MMM-yyyy, anything that isn't a valid ISO date becomes ""
+    CsvEncoder date(String iso) {
+        if (iso == null) {
+            return this;
+        }
+        int day = TransactionBatch.epochDay(iso);
+        return day != TransactionBatch.NO_DATE ? date(day) : raw(formatDateSlow(iso));
+    }
+
+    // Epoch day -> dd-MMM-yyyy
+    CsvEncoder date(int epochDay) {
+        if (epochDay < YEAR_ONE) {
+            return raw(LocalDate.ofEpochDay(epochDay).format(DATE_FORMAT));
+        }
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        int day = date.getDayOfMonth();
+        ensure(2);
+        buf[pos++] = (char) ('0' + day / 10);
+        buf[pos++] = (char) ('0' + day % 10);
+        raw('-').raw(MONTHS[date.getMonthValue()]).raw('-');
+        return digits4(date.getYear());
+    }
+
+    // Epoch day -> yyyy-MM-dd, the same text TransactionBatch was given
+    CsvEncoder isoDate(int epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        digits4(date.getYear());
+        ensure(6);
+        int month = date.getMonthValue();
+        int day = date.getDayOfMonth();
+        buf[pos++] = '-';
+        buf[pos++] = (char) ('0' + month / 10);
+        buf[pos++] = (char) ('0' + month % 10);
+        buf[pos++] = '-';
+        buf[pos++] = (char) ('0' + day / 10);
+        buf[pos++] = (char) ('0' + day % 10);
+        return this;
+    }
+
+    static String formatDate(String iso) {
+        return new CsvEncoder(16).date(iso).toString();
+    }
+
+    void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(buf, 0, pos);
+            pos = 0;
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, pos);
+    }
+
+    // |v| * 100 rounded, or -1 when the fast path can't be sure it rounds the same way the JDK formatters would
+    private static long fastCents(double v) {
+        double abs = Math.abs(v);
+        if (!(abs < FAST_PATH_LIMIT)) { // also catches NaN
+            return -1;
+        }
+        double scaled = abs * 100;
+        double fraction = scaled - Math.floor(scaled);
+        if (Math.abs(fraction - 0.5) < TIE_MARGIN) {
+            return -1;
+        }
+        return Math.round(scaled);
+    }
+
+    // Both formatters keep the minus sign on values that round to zero (and on -0.0)
+    private CsvEncoder sign(double v) {
+        if (Double.doubleToRawLongBits(v) < 0) {
+            raw('-');
+        }
+        return this;
+    }
+
+    private CsvEncoder cents(long cents, boolean grouping) {
+        long whole = cents / 100;
+        int fraction = (int) (cents % 100);
+
+        ensure(32);
+        int start = pos;
+        int digits = 0;
+        do {
+            if (grouping && digits > 0 && digits % 3 == 0) {
+                buf[pos++] = ',';
+            }
+            buf[pos++] = (char) ('0' + whole % 10);
+            whole /= 10;
+            digits++;
+        } while (whole > 0);
+        reverse(start, pos - 1);
+
+        buf[pos++] = '.';
+        buf[pos++] = (char) ('0' + fraction / 10);
+        buf[pos++] = (char) ('0' + fraction % 10);
+        return this;
+    }
+
+    private void reverse(int from, int to) {
+        while (from < to) {
+            char tmp = buf[from];
+            buf[from++] = buf[to];
+            buf[to--] = tmp;
+        }
+    }
+
+    private void ensure(int needed) {
+        if (pos + needed <= buf.length) {
+            return;
+        }
+        if (out != null) {
+            try {
+                out.write(buf, 0, pos);
+                pos = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (needed <= buf.length) {
+                return;
+            }
+        }
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + needed));
+    }
+
+    // Dates are only ever built for years 0..9999 (see TransactionBatch.epochDay)
+    private CsvEncoder digits4(int year) {
+        ensure(4);
+        buf[pos++] = (char) ('0' + year / 1000);
+        buf[pos++] = (char) ('0' + year / 100 % 10);
+        buf[pos++] = (char) ('0' + year / 10 % 10);
+        buf[pos++] = (char) ('0' + year % 10);
+        return this;
+    }
+
+    private static String formatDateSlow(String iso) {
+        try {
+            return LocalDate.parse(iso).format(DATE_FORMAT);
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.TransactionBatch;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Row order of the pretty report: type name (case-insensitive, missing last) then date (missing last), ties kept
+final class HumanRowOrder {
+
+    private static final Comparator<String> TYPE_ORDER = Comparator.nullsLast(String::compareToIgnoreCase);
+    private static final Comparator<String> DATE_ORDER = Comparator.nullsLast(String::compareTo);
+
+    // Below this many buckets a counting sort is always worth it, above it only when there are as many rows
+    private static final int MIN_BUCKETS = 1 << 16;
+
+    private HumanRowOrder() {
+    }
+
+    static int[] of(TransactionBatch tx) {
+        int size = tx.size();
+        int[] typeRank = typeRanks(tx);
+
+        int minDay = Integer.MAX_VALUE;
+        int maxDay = Integer.MIN_VALUE;
+        int maxRank = 0;
+        boolean emptyDates = false;
+        for (int row = 0; row < size; row++) {
+            int day = tx.transactionDay(row);
+            if (day != TransactionBatch.NO_DATE) {
+                minDay = Math.min(minDay, day);
+                maxDay = Math.max(maxDay, day);
+            } else if (tx.transactionDate(row) != null) {
+                if (!tx.transactionDate(row).isEmpty()) {
+                    return byComparator(tx, typeRank); // a date that isn't yyyy-MM-dd only sorts as a string
+                }
+                emptyDates = true;
+            }
+            maxRank = Math.max(maxRank, typeRank[tx.typeCode(row)]);
+        }
+
+        // day offsets from the earliest date, a slot before it for empty dates and one after the latest for no date
+        long firstDay = (minDay <= maxDay ? minDay : 0L) - (emptyDates ? 1 : 0);
+        long noDay = minDay <= maxDay ? maxDay - firstDay + 1 : -firstDay;
+        long buckets = (maxRank + 1L) * (noDay + 1);
+        if (buckets <= MIN_BUCKETS || buckets <= 2L * size && buckets < Integer.MAX_VALUE) {
+            return byBucket(tx, typeRank, firstDay, noDay, (int) buckets);
+        }
+        return byKey(tx, typeRank, firstDay, noDay, maxRank);
+    }
+
+    // Counting sort over the (type, day) buckets, stable by construction
+    private static int[] byBucket(TransactionBatch tx, int[] typeRank, long firstDay, long noDay, int buckets) {
+        int size = tx.size();
+        int days = (int) noDay + 1;
+        int[] bucketOf = new int[size];
+        int[] start = new int[buckets + 1];
+        boolean sorted = true;
+        int previous = 0;
+        for (int row = 0; row < size; row++) {
+            int bucket = typeRank[tx.typeCode(row)] * days + (int) slot(tx, row, firstDay, noDay);
+            sorted &= bucket >= previous;
+            previous = bucket;
+            bucketOf[row] = bucket;
+            start[bucket + 1]++;
+        }
+
+        int[] rows = new int[size];
+        if (sorted) {
+            Arrays.setAll(rows, row -> row);
+            return rows;
+        }
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            start[bucket + 1] += start[bucket];
+        }
+        for (int row = 0; row < size; row++) {
+            rows[start[bucketOf[row]]++] = row;
+        }
+        return rows;
+    }
+
+    // Sparse buckets: one long key per row of type rank, day offset and row index, sorted as longs
+    private static int[] byKey(TransactionBatch tx, int[] typeRank, long firstDay, long noDay, int maxRank) {
+        int size = tx.size();
+        int dayBits = bitsFor(noDay + 1);
+        int rowBits = bitsFor(size);
+        if (bitsFor(maxRank + 1L) + dayBits + rowBits > 63) {
+            return byComparator(tx, typeRank);
+        }
+
+        long[] keys = new long[size];
+        boolean sorted = true;
+        long previous = 0;
+        for (int row = 0; row < size; row++) {
+            long key = (long) typeRank[tx.typeCode(row)] << dayBits | slot(tx, row, firstDay, noDay);
+            sorted &= key >= previous;
+            previous = key;
+            keys[row] = key << rowBits | row;
+        }
+
+        int[] rows = new int[size];
+        if (sorted) {
+            Arrays.setAll(rows, row -> row);
+            return rows;
+        }
+        Arrays.sort(keys);
+        long rowMask = (1L << rowBits) - 1;
+        for (int i = 0; i < size; i++) {
+            rows[i] = (int) (keys[i] & rowMask);
+        }
+        return rows;
+    }
+
+    // "" sorts before every date, so empty dates get the slot before the first day
+    private static long slot(TransactionBatch tx, int row, long firstDay, long noDay) {
+        int day = tx.transactionDay(row);
+        if (day != TransactionBatch.NO_DATE) {
+            return day - firstDay;
+        }
+        return tx.transactionDate(row) == null ? noDay : 0;
+    }
+
+    // Dense rank per type code, codes whose names only differ in case share a rank
+    private static int[] typeRanks(TransactionBatch tx) {
+        Integer[] typeCodes = new Integer[tx.typeCount()];
+        Arrays.setAll(typeCodes, code -> code);
+        Arrays.sort(typeCodes, (a, b) -> TYPE_ORDER.compare(tx.typeNameOf(a), tx.typeNameOf(b)));
+
+        int[] typeRank = new int[typeCodes.length];
+        for (int i = 1; i < typeCodes.length; i++) {
+            boolean sameType = TYPE_ORDER.compare(tx.typeNameOf(typeCodes[i - 1]), tx.typeNameOf(typeCodes[i])) == 0;
+            typeRank[typeCodes[i]] = typeRank[typeCodes[i - 1]] + (sameType ? 0 : 1);
+        }
+        return typeRank;
+    }
+
+    // The old comparator sort, only for batches with odd date strings (or absurd spans) the keys can't express
+    private static int[] byComparator(TransactionBatch tx, int[] typeRank) {
+        Integer[] rows = new Integer[tx.size()];
+        Arrays.setAll(rows, row -> row);
+        Arrays.sort(rows, (a, b) -> {
+            int byType = Integer.compare(typeRank[tx.typeCode(a)], typeRank[tx.typeCode(b)]);
+            if (byType != 0) {
+                return byType;
+            }
+            int dayA = tx.transactionDay(a);
+            int dayB = tx.transactionDay(b);
+            if (dayA != TransactionBatch.NO_DATE && dayB != TransactionBatch.NO_DATE) {
+                return Integer.compare(dayA, dayB);
+            }
+            return DATE_ORDER.compare(tx.transactionDate(a), tx.transactionDate(b));
+        });
+        return Arrays.stream(rows).mapToInt(Integer::intValue).toArray();
+    }
+
+    static int[] byComparator(TransactionBatch tx) {
+        return byComparator(tx, typeRanks(tx));
+    }
+
+    // Bits needed to hold the values 0 .. count-1
+    private static int bitsFor(long count) {
+        return count <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(count - 1);
+    }
+}
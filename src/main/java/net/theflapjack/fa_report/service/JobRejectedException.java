@@ -0,0 +1,20 @@
+package net.theflapjack.fa_report.service;
+
+// A report job that wasn't accepted, either the user already has their quota of jobs running or the job queue is full
+public class JobRejectedException extends RuntimeException {
+
+    public enum Reason {
+        USER_QUOTA, QUEUE_FULL
+    }
+
+    private final Reason reason;
+
+    public JobRejectedException(String message, Reason reason) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
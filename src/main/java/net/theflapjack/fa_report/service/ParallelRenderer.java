@@ -0,0 +1,82 @@
+package net.theflapjack.fa_report.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
+
+// Renders a big report as fixed size row ranges on one bounded pool shared by every request, in row order
+@Component
+public class ParallelRenderer {
+
+    @FunctionalInterface
+    interface RangeRenderer<T> {
+        T render(int from, int to);
+    }
+
+    private final int threshold;
+    private final int chunkRows;
+    private final ForkJoinPool pool;
+
+    public ParallelRenderer(@Value("${fa.report.parallel-threshold:50000}") int threshold,
+                            @Value("${fa.report.parallelism:0}") int parallelism,
+                            @Value("${fa.report.parallel-chunk-rows:8192}") int chunkRows) {
+        this.threshold = threshold <= 0 ? Integer.MAX_VALUE : threshold;
+        this.chunkRows = Math.max(1, chunkRows);
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(),
+                forkJoinPool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                    thread.setName("report-render-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, false);
+    }
+
+    // Sequential only, what the benchmarks and the tests use as the baseline
+    static ParallelRenderer sequential() {
+        return new ParallelRenderer(0, 1, 1);
+    }
+
+    boolean isParallel(int rows) {
+        return rows >= threshold;
+    }
+
+    // Renders rows [0, rows) and passes every range's result to inOrder, first range first, on the calling thread
+    <T> void render(int rows, RangeRenderer<T> renderer, Consumer<T> inOrder) {
+        if (!isParallel(rows)) {
+            inOrder.accept(renderer.render(0, rows));
+            return;
+        }
+
+        List<ForkJoinTask<T>> tasks = new ArrayList<>();
+        for (int from = 0; from < rows; from += chunkRows) {
+            int start = from;
+            int end = Math.min(rows, from + chunkRows);
+            tasks.add(pool.submit(() -> renderer.render(start, end)));
+        }
+
+        try {
+            for (ForkJoinTask<T> task : tasks) {
+                inOrder.accept(task.join());
+            }
+        } catch (RuntimeException e) {
+            tasks.forEach(task -> task.cancel(false)); // nobody will read the rest
+            if (e instanceof CompletionException && e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,84 @@
+package net.theflapjack.fa_report.service;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// What a streamed report is written as (CSV, gzipped CSV or columns), picked with format= or the Accept header
+public enum ReportFormat {
+
+    CSV("csv", "text/csv;charset=UTF-8", "csv"),
+    CSV_GZIP("gzip", "application/gzip", "csv.gz"),
+    COLUMNAR("columnar", "application/vnd.fa.columnar", "facol");
+
+    private final String parameter;
+    private final MediaType mediaType;
+    private final String extension;
+
+    ReportFormat(String parameter, String mediaType, String extension) {
+        this.parameter = parameter;
+        this.mediaType = MediaType.parseMediaType(mediaType);
+        this.extension = extension;
+    }
+
+    public MediaType mediaType() {
+        return mediaType;
+    }
+
+    public String extension() {
+        return extension;
+    }
+
+    // format= when given (null if it names no format), otherwise the first Accept match, CSV when nothing matches
+    public static ReportFormat resolve(String format, String accept) {
+        if (format != null && !format.isBlank()) {
+            String name = format.trim().toLowerCase(Locale.ROOT);
+            for (ReportFormat candidate : values()) {
+                if (candidate.parameter.equals(name)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+        if (accept == null || accept.isBlank()) {
+            return CSV;
+        }
+        try {
+            for (MediaType type : MediaType.parseMediaTypes(accept)) {
+                for (ReportFormat candidate : values()) {
+                    if (type.isCompatibleWith(candidate.mediaType)) {
+                        return candidate;
+                    }
+                }
+            }
+        } catch (InvalidMediaTypeException e) {
+            return CSV;
+        }
+        return CSV;
+    }
+
+    // The stream the report is written into, gzip at the fastest level and flushed along with the writer
+    OutputStream open(OutputStream out) throws IOException {
+        if (this != CSV_GZIP) {
+            return out;
+        }
+        return new GZIPOutputStream(out, 64 * 1024, true) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+    }
+
+    // Ends what open() started, writing the gzip trailer. The response stream itself is left to the container
+    static void finish(OutputStream body) throws IOException {
+        if (body instanceof GZIPOutputStream gzip) {
+            gzip.finish();
+        }
+        body.flush();
+    }
+}
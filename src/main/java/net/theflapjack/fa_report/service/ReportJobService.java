@@ -0,0 +1,211 @@
+package net.theflapjack.fa_report.service;
+
+import jakarta.annotation.PreDestroy;
+import net.theflapjack.fa_report.model.ReportJobStatus;
+import net.theflapjack.fa_report.model.ReportJobStatus.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+// Reports too big for one HTTP request, rendered to local files by a fixed pool of workers while the client polls
+@Service
+public class ReportJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportJobService.class);
+
+    // Everything that makes two jobs produce the same file
+    record JobRequest(Long portfolioId, String startDate, String endDate, List<String> targetCurrencies, boolean pretty) {
+        static JobRequest of(Long portfolioId, String startDate, String endDate, List<String> targetCurrencies, boolean pretty) {
+            return new JobRequest(portfolioId, startDate, endDate,
+                    targetCurrencies.stream().map(currency -> currency.toUpperCase(Locale.ROOT)).toList(), pretty);
+        }
+    }
+
+    @FunctionalInterface
+    interface ReportWriter {
+        void write(JobRequest request, OutputStream out, LongConsumer rowsRead) throws IOException;
+    }
+
+    private final ReportWriter writer;
+    private final Path directory;
+    private final int maxPerUser;
+    private final int maxQueued;
+    private final Duration retention;
+    private final ExecutorService workers;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Map<JobRequest, Job> inFlight = new HashMap<>();
+    private final Map<String, Integer> activePerUser = new HashMap<>();
+
+    @Autowired
+    public ReportJobService(ReportService reportService,
+                            @Value("${fa.jobs.workers:2}") int workers,
+                            @Value("${fa.jobs.dir:${java.io.tmpdir}/fa-report/jobs}") Path directory,
+                            @Value("${fa.jobs.max-per-user:2}") int maxPerUser,
+                            @Value("${fa.jobs.max-queued:50}") int maxQueued,
+                            @Value("${fa.jobs.retention:PT1H}") Duration retention) {
+        this((request, out, rowsRead) -> reportService.writeReport(request.portfolioId(), request.startDate(),
+                request.endDate(), request.targetCurrencies(), request.pretty(), out, rowsRead),
+                workers, directory, maxPerUser, maxQueued, retention);
+    }
+
+    ReportJobService(ReportWriter writer, int workers, Path directory, int maxPerUser, int maxQueued, Duration retention) {
+        this.writer = writer;
+        this.directory = directory;
+        this.maxPerUser = Math.max(1, maxPerUser);
+        this.maxQueued = Math.max(1, maxQueued);
+        this.retention = retention;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers),
+                Thread.ofPlatform().name("report-job-", 0).daemon().factory());
+        clearDirectory();
+    }
+
+    // Queues the report or returns the identical job already in progress, JobRejectedException past the quota
+    public ReportJobStatus submit(String user, Long portfolioId, String startDate, String endDate,
+                                  List<String> targetCurrencies, boolean pretty) {
+        purgeExpired();
+        JobRequest request = JobRequest.of(portfolioId, startDate, endDate, targetCurrencies, pretty);
+        Job job;
+        synchronized (this) {
+            Job running = inFlight.get(request);
+            if (running != null) {
+                return running.status(); // no new work, so it doesn't count against the quota
+            }
+            if (activePerUser.getOrDefault(user, 0) >= maxPerUser) {
+                throw new JobRejectedException("You already have " + maxPerUser + " report jobs running", JobRejectedException.Reason.USER_QUOTA);
+            }
+            if (inFlight.size() >= maxQueued) {
+                throw new JobRejectedException("Too many report jobs queued", JobRejectedException.Reason.QUEUE_FULL);
+            }
+            job = new Job(UUID.randomUUID().toString(), request, user);
+            jobs.put(job.id, job);
+            inFlight.put(request, job);
+            activePerUser.merge(user, 1, Integer::sum);
+        }
+        workers.execute(() -> run(job));
+        return job.status();
+    }
+
+    // The job's status, or null for an unknown (or already purged) id
+    public ReportJobStatus status(String id) {
+        purgeExpired();
+        Job job = jobs.get(id);
+        return job == null ? null : job.status();
+    }
+
+    // The finished report of a DONE job, otherwise null
+    public Path result(String id) {
+        Job job = jobs.get(id);
+        return job == null || job.state != State.DONE ? null : job.file;
+    }
+
+    private void run(Job job) {
+        job.started = Instant.now();
+        job.state = State.RUNNING;
+        Path file = directory.resolve(job.id + ".csv");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+                writer.write(job.request, out, job.rowsProcessed::lazySet);
+            }
+            job.file = file;
+            job.finished = Instant.now();
+            job.state = State.DONE;
+        } catch (Exception e) {
+            logger.error("Report job {} for portfolio {} failed", job.id, job.request.portfolioId(), e);
+            delete(file);
+            job.error = "Error generating report";
+            job.finished = Instant.now();
+            job.state = State.FAILED;
+        } finally {
+            synchronized (this) {
+                inFlight.remove(job.request, job);
+                activePerUser.computeIfPresent(job.user, (user, active) -> active > 1 ? active - 1 : null);
+            }
+        }
+    }
+
+    private void purgeExpired() {
+        Instant cutoff = Instant.now().minus(retention);
+        jobs.values().removeIf(job -> {
+            Instant finished = job.finished;
+            if (finished == null || !finished.isBefore(cutoff)) {
+                return false;
+            }
+            if (job.file != null) {
+                delete(job.file);
+            }
+            return true;
+        });
+    }
+
+    // Job files of a previous run can't be asked for any more, start from an empty directory
+    private void clearDirectory() {
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.csv")) {
+                files.forEach(ReportJobService::delete);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot prepare report job directory " + directory, e);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Failed to delete report job file {}", file, e);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private static final class Job {
+        private final String id;
+        private final JobRequest request;
+        private final String user;
+        private final Instant submitted = Instant.now();
+        private final AtomicLong rowsProcessed = new AtomicLong();
+        private volatile State state = State.QUEUED;
+        private volatile Instant started;
+        private volatile Instant finished;
+        private volatile Path file;
+        private volatile String error;
+
+        private Job(String id, JobRequest request, String user) {
+            this.id = id;
+            this.request = request;
+            this.user = user;
+        }
+
+        ReportJobStatus status() {
+            return new ReportJobStatus(id, state, rowsProcessed.get(), submitted, started, finished, error);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.theflapjack.fa_report.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import net.theflapjack.fa_report.client.UpstreamBusyException;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+// Meters of the report side, after the rows are fetched, tagged by mode and a small fixed set of currencies
+@Component
+public class ReportMetrics {
+
+    private final MeterRegistry registry;
+
+    public ReportMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    // Nothing registered anywhere, for the tests and benchmarks that build a ReportService by hand
+    static ReportMetrics noop() {
+        return new ReportMetrics(new CompositeMeterRegistry());
+    }
+
+    public static String mode(boolean pretty) {
+        return pretty ? "pretty" : "raw";
+    }
+
+    public static String currency(List<String> targetCurrencies) {
+        if (targetCurrencies == null || targetCurrencies.isEmpty()) {
+            return "none";
+        }
+        return targetCurrencies.size() == 1 ? targetCurrencies.get(0) : "multiple";
+    }
+
+    // sort, render, summary and fx (resolving target rates, loads included) of one report
+    Timer stage(String stage, String mode, String currency) {
+        return Timer.builder("fa.report.stage")
+                .description("Time spent in each stage of building a report")
+                .tag("stage", stage)
+                .tag("mode", mode)
+                .tag("currency", currency)
+                .register(registry);
+    }
+
+    <T> T time(String stage, String mode, String currency, Supplier<T> work) {
+        return stage(stage, mode, currency).record(work);
+    }
+
+    // Parsing an upstream response, for a streamed one that includes the wait for FA
+    Timer parse(boolean streamed) {
+        return Timer.builder("fa.transactions.parse")
+                .description("Time spent parsing FA transaction responses")
+                .tag("source", streamed ? "stream" : "buffered")
+                .register(registry);
+    }
+
+    void rows(String mode, String currency, long rows) {
+        DistributionSummary.builder("fa.report.rows")
+                .description("Rows per report")
+                .tag("mode", mode)
+                .tag("currency", currency)
+                .register(registry)
+                .record(rows);
+    }
+
+    public void error(String mode, Throwable e) {
+        Counter.builder("fa.report.errors")
+                .description("Reports that failed, by cause")
+                .tag("mode", mode)
+                .tag("cause", cause(e))
+                .register(registry)
+                .increment();
+    }
+
+    // Bytes the request's thread allocated while it handled the request
+    public void allocated(String endpoint, String mode, String currency, long bytes) {
+        DistributionSummary.builder("fa.report.allocated")
+                .description("Bytes allocated by the request thread")
+                .baseUnit("bytes")
+                .tag("endpoint", endpoint)
+                .tag("mode", mode)
+                .tag("currency", currency)
+                .register(registry)
+                .record(bytes);
+    }
+
+    // The first cause in the chain we know, walked from the outside in
+    static String cause(Throwable e) {
+        boolean io = false;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof UpstreamBusyException) {
+                return "upstream_busy";
+            }
+            if (t instanceof WebClientResponseException) {
+                return "upstream_status";
+            }
+            if (t instanceof WebClientRequestException) {
+                return "upstream_connection";
+            }
+            if (t instanceof TimeoutException) {
+                return "timeout";
+            }
+            if (t instanceof JsonProcessingException) {
+                return "parse";
+            }
+            io |= t instanceof IOException || t instanceof UncheckedIOException;
+        }
+        return io ? "io" : "other";
+    }
+}
@@ -1,19 +1,47 @@
 package net.theflapjack.fa_report.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import net.theflapjack.fa_report.auth.TokenManager;
+import net.theflapjack.fa_report.cache.FxRateCache;
+import net.theflapjack.fa_report.cache.RenderedReportStore;
+import net.theflapjack.fa_report.cache.TransactionCache;
+import net.theflapjack.fa_report.cache.TransactionCacheKey;
+import net.theflapjack.fa_report.cache.TransactionSegmentStore;
 import org.springframework.stereotype.Service;
 import net.theflapjack.fa_report.client.FaGraphQLClient;
+import net.theflapjack.fa_report.client.FaQueries;
+import net.theflapjack.fa_report.client.GraphQLQuery;
 import org.springframework.beans.factory.annotation.Value;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import net.theflapjack.fa_report.model.FlatTransaction;
-
-import java.text.DecimalFormat;
+import net.theflapjack.fa_report.model.ReportSummary;
+import net.theflapjack.fa_report.model.TransactionBatch;
+
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
 
 
@@ -23,247 +51,914 @@ public class ReportService {
 
     private final FaGraphQLClient graphQLClient;
     private final TokenManager tokenManager;
+    private final TransactionCache transactionCache;
+    private final TransactionSegmentStore segmentStore;
+    private final RenderedReportStore renderedReports;
+    private final FxRateCache fxRates;
+    private final ParallelRenderer renderer;
+    private final CashFlowClassifier cashFlowClassifier;
+    private final TransactionPaging paging;
+    private final ReportMetrics metrics;
     private final String username;
     private final String password;
-
-    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MMM-yyyy");
-    private static final DecimalFormat MONEY = new DecimalFormat("0.00");
-    private static final DecimalFormat HUMAN_MONEY = new DecimalFormat("$#,##0.00");
+    private final int batchChunkSize;
+    private final boolean segmentsEnabled;
+
+    private static final int STREAM_BUFFER_ROWS = 1024;
+
+    private static final String RAW_HEADER = "portfolio,security,isin,currency,quantity,unit_price,trade_amount,type,trade_date,settlement_date\n";
+    // Columnar counterpart of RAW_HEADER. Dates that aren't plain yyyy-MM-dd are written as missing
+    private static final List<ColumnarEncoder.Column> RAW_COLUMNS = List.of(
+            ColumnarEncoder.Column.text("portfolio", TransactionBatch::portfolioShortName),
+            ColumnarEncoder.Column.text("security", TransactionBatch::securityName),
+            ColumnarEncoder.Column.text("isin", TransactionBatch::securityISIN),
+            ColumnarEncoder.Column.text("currency", TransactionBatch::currencyCode),
+            ColumnarEncoder.Column.number("quantity", TransactionBatch::quantity),
+            ColumnarEncoder.Column.number("unit_price", TransactionBatch::unitPrice),
+            ColumnarEncoder.Column.number("trade_amount", TransactionBatch::tradeAmount),
+            ColumnarEncoder.Column.text("type", TransactionBatch::typeName),
+            ColumnarEncoder.Column.date("trade_date", TransactionBatch::transactionDay),
+            ColumnarEncoder.Column.date("settlement_date", TransactionBatch::settlementDay));
+    private static final String HUMAN_HEADER = "Portfolio Short Name,Security Name,ISIN,Currency Code,Quantity,Unit Price,Trade Amount,Notional (USD), Target FX Rate, Notional (Target), Type Name,Transaction Date,Settlement Date\n";
+    // With several target currencies every one of them gets its own rate and notional column, in the order asked for
+    private static final String HUMAN_HEADER_START = "Portfolio Short Name,Security Name,ISIN,Currency Code,Quantity,Unit Price,Trade Amount,Notional (USD),";
+    private static final String HUMAN_HEADER_END = " Type Name,Transaction Date,Settlement Date\n";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     public ReportService(FaGraphQLClient graphQLClient,
                          TokenManager tokenManager,
+                         TransactionCache transactionCache,
+                         TransactionSegmentStore segmentStore,
+                         RenderedReportStore renderedReports,
+                         FxRateCache fxRates,
+                         ParallelRenderer renderer,
+                         CashFlowClassifier cashFlowClassifier,
+                         TransactionPaging paging,
+                         ReportMetrics metrics,
                          @Value("${fa.api.username}") String username,
-                         @Value("${fa.api.password}") String password) {
+                         @Value("${fa.api.password}") String password,
+                         @Value("${fa.report.batch-chunk-size:50}") int batchChunkSize,
+                         @Value("${fa.segments.enabled:true}") boolean segmentsEnabled) {
         this.graphQLClient = graphQLClient;
         this.tokenManager = tokenManager;
+        this.transactionCache = transactionCache;
+        this.segmentStore = segmentStore;
+        this.renderedReports = renderedReports;
+        this.fxRates = fxRates;
+        this.renderer = renderer;
+        this.cashFlowClassifier = cashFlowClassifier;
+        this.paging = paging;
+        this.metrics = metrics;
         this.username = username;
         this.password = password;
+        this.batchChunkSize = Math.max(1, batchChunkSize);
+        this.segmentsEnabled = segmentsEnabled;
     }
 
-    public List<FlatTransaction> getTransactions(Long portfolioId, String startDate, String endDate, String targetCurrency) {
-
-        String startDateString = (startDate == null) ? "" : startDate;
-        String endDateString = (endDate == null) ? "" : endDate;
-
-        String transactionQuery = """
-            query Transactions($ids: [Long], $startDate: String, $endDate: String, $targetCurrency: String) {
-              portfoliosByIds(ids: $ids) {
-                transactions(status: "OK", startDate: $startDate, endDate: $endDate) {
-                  portfolio: parentPortfolio {
-                    shortName
-                  }
-                  security {
-                    name
-                    isinCode
-                  }
-                  currency {
-                    code: securityCode
-                  }
-                  quantity: amount
-                  unitPrice: unitPriceView
-                  tradeAmount
-                  type {
-                    name: typeName
-                  }
-                  transactionDate
-                  settlementDate
-                  fxUSD: fxRate(quoteCurrency: "USD")
-                  fxTarget: fxRate(quoteCurrency: $targetCurrency)
-                }
-              }
+    // A service that can only parse and render, for tests and benchmarks
+    static ReportService forRendering(ParallelRenderer renderer) {
+        return new ReportService(null, null, null, null, null, null, renderer, CashFlowClassifier.defaults(),
+                TransactionPaging.disabled(), ReportMetrics.noop(), "", "", 50, false);
+    }
+
+    // Cached, the returned batch is shared and must not be modified. The same rows serve every target currency
+    public TransactionBatch getTransactionBatch(Long portfolioId, String startDate, String endDate) {
+
+        return transactionCache.get(
+                TransactionCacheKey.of(portfolioId, startDate, endDate),
+                key -> loadTransactions(portfolioId, startDate, endDate));
+    }
+
+    // FlatTransaction view of the cached batch for anything that still wants row objects (without target FX, see targetRates)
+    public List<FlatTransaction> getTransactions(Long portfolioId, String startDate, String endDate) {
+        return getTransactionBatch(portfolioId, startDate, endDate).asList();
+    }
+
+    // Bounded ranges go through the month segment store, an open start date is always fetched in one go
+    private TransactionBatch loadTransactions(Long portfolioId, String startDate, String endDate) {
+        if (!segmentsEnabled || startDate == null) {
+            return getTransactionBatch(List.of(portfolioId), startDate, endDate);
+        }
+        LocalDate start = LocalDate.parse(startDate);
+        LocalDate end = endDate == null ? LocalDate.now() : LocalDate.parse(endDate);
+
+        return segmentStore.get(portfolioId, start, end,
+                (from, to) -> getTransactionBatch(List.of(portfolioId), from.toString(), to.toString()));
+    }
+
+    // One upstream call for all the ids, rows come back portfolio by portfolio in the order FA returns them
+    public TransactionBatch getTransactionBatch(List<Long> portfolioIds, String startDate, String endDate) {
+        TransactionPaging.Plan plan = planPages(portfolioIds, startDate, endDate);
+        if (plan != null) {
+            return collectPages(portfolioIds.get(0), plan).block();
+        }
+
+        GraphQLQuery.Variables transactionData = transactionVariables(portfolioIds, startDate, endDate);
+
+        String token = tokenManager.getValidAccessToken(username,password);
+        String response = graphQLClient.sendQuery(FaQueries.TRANSACTIONS,transactionData,token);
+
+        return parseTransactions(response);
+    }
+
+    // Reactive counterpart of getTransactionBatch, through the same cache but not the month segment store
+    public Mono<TransactionBatch> getTransactionBatchMono(Long portfolioId, String startDate, String endDate) {
+        return transactionCache.getMono(
+                TransactionCacheKey.of(portfolioId, startDate, endDate),
+                key -> {
+                    TransactionPaging.Plan plan = planPages(List.of(portfolioId), startDate, endDate);
+                    if (plan != null) {
+                        return collectPages(portfolioId, plan);
+                    }
+                    GraphQLQuery.Variables transactionData = transactionVariables(List.of(portfolioId), startDate, endDate);
+                    return tokenManager.getValidAccessTokenMono(username, password)
+                            .flatMap(token -> graphQLClient.sendQueryMono(FaQueries.TRANSACTIONS, transactionData, token))
+                            .map(this::parseTransactions);
+                });
+    }
+
+    // Only a single portfolio is paged, for several ids the windows would interleave their rows
+    private TransactionPaging.Plan planPages(List<Long> portfolioIds, String startDate, String endDate) {
+        return portfolioIds.size() == 1 ? paging.plan(startDate, endDate) : null;
+    }
+
+    // The plan's windows fetched paging.concurrency() at a time, each page parsed on arrival and handed on in date order
+    private Flux<TransactionBatch> fetchPages(Long portfolioId, TransactionPaging.Plan plan) {
+        return Flux.<TransactionPaging.Window>generate(sink -> {
+                    TransactionPaging.Window window = plan.next();
+                    if (window == null) {
+                        sink.complete();
+                    } else {
+                        sink.next(window);
+                    }
+                })
+                .flatMapSequential(window -> {
+                    GraphQLQuery.Variables transactionData = transactionVariables(List.of(portfolioId), window.startDate(), window.endDate());
+                    return tokenManager.getValidAccessTokenMono(username, password)
+                            .flatMap(token -> graphQLClient.sendQueryMono(FaQueries.TRANSACTIONS, transactionData, token))
+                            .publishOn(Schedulers.parallel())
+                            .map(this::parseTransactions)
+                            .doOnNext(page -> plan.observed(window, page.size()));
+                }, paging.concurrency(), 1);
+    }
+
+    private Mono<TransactionBatch> collectPages(Long portfolioId, TransactionPaging.Plan plan) {
+        return fetchPages(portfolioId, plan)
+                .reduceWith(TransactionBatch::new, (all, page) -> {
+                    all.addAll(page);
+                    return all;
+                });
+    }
+
+    // Written by the client straight into the request buffer, a missing date is "" (no limit) for FA
+    private static GraphQLQuery.Variables transactionVariables(List<Long> portfolioIds, String startDate, String endDate) {
+        return json -> {
+            json.writeArrayFieldStart("ids");
+            for (Long id : portfolioIds) {
+                json.writeNumber(id);
             }
-        """;
-
-        String transactionData = String.format("""
-            {
-                "ids": [%d],
-                "startDate": "%s",
-                "endDate": "%s",
-                "targetCurrency": "%s"
+            json.writeEndArray();
+            json.writeStringField("startDate", startDate == null ? "" : startDate);
+            json.writeStringField("endDate", endDate == null ? "" : endDate);
+        };
+    }
+
+    // Opens the upstream response as a stream and appends every parsed transaction to the batch as it is read
+    private void readTransactions(List<Long> portfolioIds, String startDate, String endDate,
+                                  TransactionBatch batch, IntConsumer onRow) {
+        TransactionPaging.Plan plan = planPages(portfolioIds, startDate, endDate);
+        if (plan != null) {
+            readPages(portfolioIds.get(0), plan, batch, onRow);
+            return;
+        }
+        GraphQLQuery.Variables transactionData = transactionVariables(portfolioIds, startDate, endDate);
+        String token = tokenManager.getValidAccessToken(username, password);
+
+        long start = System.nanoTime();
+        try (InputStream body = graphQLClient.sendQueryForStream(FaQueries.TRANSACTIONS, transactionData, token)) {
+            TransactionStreamParser.parse(body, batch, onRow);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read GraphQL response", e);
+        } finally {
+            metrics.parse(true).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Paged version of readTransactions, copying rows so that a copy never runs past the buffer's last row
+    private void readPages(Long portfolioId, TransactionPaging.Plan plan, TransactionBatch batch, IntConsumer onRow) {
+        int[] rows = new int[STREAM_BUFFER_ROWS];
+        // closing the stream cancels the outstanding pages if the caller fails half way (e.g. the client went away)
+        try (Stream<TransactionBatch> pages = fetchPages(portfolioId, plan).toStream(1)) {
+            for (Iterator<TransactionBatch> it = pages.iterator(); it.hasNext(); ) {
+                TransactionBatch page = it.next();
+                for (int from = 0; from < page.size(); ) {
+                    int count = Math.min(page.size() - from, STREAM_BUFFER_ROWS - batch.size() % STREAM_BUFFER_ROWS);
+                    for (int i = 0; i < count; i++) {
+                        rows[i] = from + i;
+                    }
+                    int first = batch.size();
+                    batch.addRows(page, rows, count);
+                    for (int row = first; row < first + count; row++) {
+                        onRow.accept(row);
+                    }
+                    from += count;
+                }
             }
-        """, portfolioId, startDateString, endDateString,targetCurrency);
+        }
+    }
 
-        String token = tokenManager.getValidAccessToken(username,password);
-        String response = graphQLClient.sendQuery(transactionQuery,transactionData,token);
+    // Raw rows are written as they are parsed, the batch is only a small reusable buffer here. Returns the rows written
+    private long streamRawRows(List<Long> portfolioIds, String startDate, String endDate, ReportWriter writer) {
+        return streamRawRows(portfolioIds, startDate, endDate, writer, rows -> { });
+    }
 
-        return parseFlatTransactions(response);
+    // rowsWritten is told the running row count after every row
+    private long streamRawRows(List<Long> portfolioIds, String startDate, String endDate, ReportWriter writer,
+                               LongConsumer rowsWritten) {
+        TransactionBatch buffer = new TransactionBatch(STREAM_BUFFER_ROWS);
+        long[] written = new long[1];
+        readTransactions(portfolioIds, startDate, endDate, buffer, row -> {
+            writer.rawRow(buffer, row);
+            rowsWritten.accept(++written[0]);
+            if (row == STREAM_BUFFER_ROWS - 1) {
+                writer.endOfBuffer(buffer);
+                buffer.clear();
+            }
+        });
+        writer.endOfBuffer(buffer);
+        return written[0];
     }
 
 
     // Wrapper to output a csv string (separated logic so formatted transactions could still be used with other code)
-    public String generateCsv(Long portfolioId, String startDate, String endDate, String customFX) {
-        List<FlatTransaction> transactions = getTransactions(portfolioId, startDate, endDate, customFX);
+    public String generateCsv(Long portfolioId, String startDate, String endDate) {
+        TransactionBatch transactions = getTransactionBatch(portfolioId, startDate, endDate);
         return convertToCsv(transactions);
     }
 
-    public String generateHumanCsv(Long portfolioId, String startDate, String endDate, String customFX) {
-        List<FlatTransaction> transactions = getTransactions(portfolioId, startDate, endDate, customFX);
-        return convertToHumanCsv(transactions);
+    public String generateHumanCsv(Long portfolioId, String startDate, String endDate, List<String> targetCurrencies) {
+        TransactionBatch transactions = getTransactionBatch(portfolioId, startDate, endDate);
+        return convertToHumanCsv(transactions, targetRates(transactions, targetCurrencies));
     }
 
+    // The report as a file in the rendered-report store, null when the store is turned off
+    public RenderedReportStore.RenderedReport renderReport(Long portfolioId, String startDate, String endDate,
+                                                           List<String> targetCurrencies, boolean pretty) {
+        if (!renderedReports.isEnabled()) {
+            return null;
+        }
+        TransactionCacheKey key = TransactionCacheKey.of(portfolioId, startDate, endDate);
+        TransactionBatch transactions = getTransactionBatch(portfolioId, startDate, endDate);
+        List<String> targets = pretty ? targetCurrencies : List.of();
+
+        return renderedReports.get(key, pretty, targets, transactions, out -> {
+            CsvEncoder csv = new CsvEncoder(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            if (pretty) {
+                writeHumanCsv(csv, transactions, targetRates(transactions, targets));
+            } else {
+                csv.raw(RAW_HEADER);
+                writeCsvRows(csv, transactions);
+            }
+            csv.flush();
+        });
+    }
 
-    private List<FlatTransaction> parseFlatTransactions(String json) {
-        List<FlatTransaction> result = new ArrayList<>();
+    // Rendering is CPU work so it's moved off the HTTP client's event loop onto the bounded parallel scheduler
+    public Mono<String> generateCsvMono(Long portfolioId, String startDate, String endDate) {
+        return getTransactionBatchMono(portfolioId, startDate, endDate)
+                .publishOn(Schedulers.parallel())
+                .map(this::convertToCsv);
+    }
+
+    public Mono<String> generateHumanCsvMono(Long portfolioId, String startDate, String endDate, List<String> targetCurrencies) {
+        return getTransactionBatchMono(portfolioId, startDate, endDate)
+                .flatMap(transactions -> targetRatesMono(transactions, targetCurrencies)
+                        .publishOn(Schedulers.parallel())
+                        .map(rates -> convertToHumanCsv(transactions, rates)));
+    }
+
+    // Streaming version of generateCsv, a cache hit is rendered from memory and a miss streams straight from upstream
+    public void streamCsv(Long portfolioId, String startDate, String endDate, ReportFormat format,
+                          OutputStream out) throws IOException {
+        ReportWriter writer = writer(format, out);
+        writer.rawHeader();
+
+        TransactionBatch cached = transactionCache.getIfPresent(TransactionCacheKey.of(portfolioId, startDate, endDate));
+        if (cached != null) {
+            writer.rawRows(cached);
+        } else {
+            metrics.rows(ReportMetrics.mode(false), "none", streamRawRows(List.of(portfolioId), startDate, endDate, writer));
+        }
+        writer.finish();
+    }
+
+    // The pretty report is sorted so rows still have to be collected, but only as columns, never the body or a JSON tree
+    public void streamHumanCsv(Long portfolioId, String startDate, String endDate, List<String> targetCurrencies,
+                               ReportFormat format, OutputStream out) throws IOException {
+        TransactionBatch transactions = transactionCache.getIfPresent(TransactionCacheKey.of(portfolioId, startDate, endDate));
+        if (transactions == null) {
+            transactions = new TransactionBatch();
+            readTransactions(List.of(portfolioId), startDate, endDate, transactions, row -> { });
+        }
+
+        ReportWriter writer = writer(format, out);
+        writer.pretty(transactions, targetRates(transactions, targetCurrencies));
+        writer.finish();
+    }
+
+    // streamCsv / streamHumanCsv for report jobs, rowsRead is told how many rows have been read so far
+    public void writeReport(Long portfolioId, String startDate, String endDate, List<String> targetCurrencies, boolean pretty,
+                            OutputStream out, LongConsumer rowsRead) throws IOException {
+        ReportWriter writer = writer(ReportFormat.CSV, out);
+        TransactionBatch transactions = transactionCache.getIfPresent(TransactionCacheKey.of(portfolioId, startDate, endDate));
+        if (transactions != null) {
+            rowsRead.accept(transactions.size());
+        } else if (pretty) {
+            TransactionBatch fetched = new TransactionBatch();
+            readTransactions(List.of(portfolioId), startDate, endDate, fetched, row -> rowsRead.accept(row + 1L));
+            transactions = fetched;
+        }
+
+        if (pretty) {
+            writer.pretty(transactions, targetRates(transactions, targetCurrencies));
+        } else {
+            writer.rawHeader();
+            if (transactions != null) {
+                writer.rawRows(transactions);
+            } else {
+                metrics.rows(ReportMetrics.mode(false), "none",
+                        streamRawRows(List.of(portfolioId), startDate, endDate, writer, rowsRead));
+            }
+        }
+        writer.finish();
+    }
+
+    // Combined report for many portfolios, fetched batchChunkSize ids per upstream call instead of one call each
+    public void streamBatchCsv(List<Long> portfolioIds, String startDate, String endDate, List<String> targetCurrencies,
+                               boolean pretty, ReportFormat format, OutputStream out) throws IOException {
+        ReportWriter writer = writer(format, out);
+
+        if (pretty) {
+            TransactionBatch transactions = new TransactionBatch();
+            for (List<Long> chunk : chunk(portfolioIds)) {
+                readTransactions(chunk, startDate, endDate, transactions, row -> { });
+            }
+            writer.pretty(transactions, targetRates(transactions, targetCurrencies));
+        } else {
+            writer.rawHeader();
+            long rows = 0;
+            for (List<Long> chunk : chunk(portfolioIds)) {
+                rows += streamRawRows(chunk, startDate, endDate, writer);
+                writer.flush(); // let the client see each chunk as it finishes
+            }
+            metrics.rows(ReportMetrics.mode(false), "none", rows);
+        }
+        writer.finish();
+    }
+
+    // Writes a whole report of rows already in memory, the tests use it to check every format
+    void writeReport(TransactionBatch transactions, TargetRates rates, boolean pretty, ReportFormat format,
+                     OutputStream out) throws IOException {
+        ReportWriter writer = writer(format, out);
+        if (pretty) {
+            writer.pretty(transactions, rates);
+        } else {
+            writer.rawHeader();
+            writer.rawRows(transactions);
+        }
+        writer.finish();
+    }
+
+    // Only the aggregates of the pretty report's footer, computed while the upstream response streams past
+    public ReportSummary summarize(Long portfolioId, String startDate, String endDate) {
+        return metrics.time("summary", "summary", "none", () -> summarizeRows(portfolioId, startDate, endDate));
+    }
+
+    private ReportSummary summarizeRows(Long portfolioId, String startDate, String endDate) {
+        TransactionBatch cached = transactionCache.getIfPresent(TransactionCacheKey.of(portfolioId, startDate, endDate));
+        CashFlowSummary summary;
+        if (cached != null) {
+            summary = new CashFlowSummary(cached, cashFlowClassifier, true);
+            for (int row = 0; row < cached.size(); row++) {
+                summary.add(row);
+            }
+        } else {
+            TransactionBatch buffer = new TransactionBatch(STREAM_BUFFER_ROWS);
+            CashFlowSummary streaming = new CashFlowSummary(buffer, cashFlowClassifier, true);
+            readTransactions(List.of(portfolioId), startDate, endDate, buffer, row -> {
+                streaming.add(row);
+                if (row == STREAM_BUFFER_ROWS - 1) {
+                    streaming.beforeClear();
+                    buffer.clear();
+                }
+            });
+            summary = streaming;
+        }
+        metrics.rows("summary", "none", summary.rows());
+
+        return new ReportSummary(
+                summary.rows(),
+                toCents(summary.total()),
+                toCents(summary.byType()),
+                toCents(summary.byMonth()),
+                toCents(summary.byCurrency()));
+    }
+
+    // Target currency rates of every row (rates[target][row]) from the FX rate cache, filled first per currency pair
+    TargetRates targetRates(TransactionBatch tx, List<String> targetCurrencies) {
+        return targetRatesMono(tx, targetCurrencies).block();
+    }
+
+    private Mono<TargetRates> targetRatesMono(TransactionBatch tx, List<String> targetCurrencies) {
+        Timer fxStage = metrics.stage("fx", ReportMetrics.mode(true), ReportMetrics.currency(targetCurrencies));
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start();
+            int currencies = tx.currencyCount();
+            int[] firstDay = new int[currencies];
+            int[] lastDay = new int[currencies];
+            Arrays.fill(firstDay, Integer.MAX_VALUE);
+            Arrays.fill(lastDay, Integer.MIN_VALUE);
+            for (int row = 0; row < tx.size(); row++) {
+                int day = tx.transactionDay(row);
+                if (day != TransactionBatch.NO_DATE) {
+                    int currency = tx.currencyId(row);
+                    firstDay[currency] = Math.min(firstDay[currency], day);
+                    lastDay[currency] = Math.max(lastDay[currency], day);
+                }
+            }
+
+            List<FxRateCache.RateRange> ranges = new ArrayList<>();
+            for (int currency = 0; currency < currencies; currency++) {
+                String base = tx.currencyOf(currency);
+                if (base == null || firstDay[currency] > lastDay[currency]) {
+                    continue;
+                }
+                for (String target : targetCurrencies) {
+                    ranges.add(new FxRateCache.RateRange(base, target,
+                            LocalDate.ofEpochDay(firstDay[currency]), LocalDate.ofEpochDay(lastDay[currency])));
+                }
+            }
+
+            return fxRates.fill(ranges, this::loadRates).then(Mono.fromCallable(() -> {
+                double[][] rates = new double[targetCurrencies.size()][tx.size()];
+                for (int t = 0; t < rates.length; t++) {
+                    Arrays.fill(rates[t], Double.NaN); // rows without a date or currency have no rate
+                    // a dense run of days per currency, so a row is just an array lookup
+                    double[][] byDay = new double[currencies][];
+                    for (int currency = 0; currency < currencies; currency++) {
+                        String base = tx.currencyOf(currency);
+                        if (base != null && firstDay[currency] <= lastDay[currency]) {
+                            byDay[currency] = fxRates.rates(base, targetCurrencies.get(t), firstDay[currency], lastDay[currency]);
+                        }
+                    }
+                    for (int row = 0; row < tx.size(); row++) {
+                        int day = tx.transactionDay(row);
+                        int currency = tx.currencyId(row);
+                        if (day != TransactionBatch.NO_DATE && byDay[currency] != null) {
+                            rates[t][row] = byDay[currency][day - firstDay[currency]];
+                        }
+                    }
+                }
+                return new TargetRates(List.copyOf(targetCurrencies), rates);
+            })).doFinally(signal -> sample.stop(fxStage));
+        });
+    }
+
+    private Mono<Map<LocalDate, Double>> loadRates(String base, String quote, LocalDate from, LocalDate to) {
+        GraphQLQuery.Variables variables = json -> {
+            json.writeStringField("currency", base);
+            json.writeStringField("quoteCurrency", quote);
+            json.writeStringField("startDate", from.toString());
+            json.writeStringField("endDate", to.toString());
+        };
+        return tokenManager.getValidAccessTokenMono(username, password)
+                .flatMap(token -> graphQLClient.sendQueryMono(FaQueries.FX_RATES, variables, token))
+                .map(ReportService::parseRates);
+    }
+
+    // An errors answer, or one without the fxRates list, fails the report rather than passing for "no rates"
+    private static Map<LocalDate, Double> parseRates(String json) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode root = mapper.readTree(json);
-            JsonNode transactions = root
-                    .path("data")
-                    .path("portfoliosByIds")
-                    .get(0)
-                    .path("transactions");
-
-            for (JsonNode tx : transactions) {
-
-                Double quantity = tx.path("quantity").asDouble();
-                Double unitPrice = tx.path("unitPrice").asDouble();
-                Double tradeAmount = tx.path("tradeAmount").asDouble();
-                Double fxUSD = tx.path("fxUSD").asDouble();
-                Double fxTarget = tx.path("fxTarget").asDouble();
-
-                        FlatTransaction flat = new FlatTransaction(
-                        safeText(tx.path("portfolio").path("shortName")),
-                        safeText(tx.path("security").path("name")),
-                        safeText(tx.path("security").path("isinCode")),
-                        safeText(tx.path("currency").path("code")),
-                        quantity,
-                        unitPrice,
-                        tradeAmount,
-                        safeText(tx.path("type").path("name")),
-                        safeText(tx.path("transactionDate")),
-                        safeText(tx.path("settlementDate")),
-                        unitPrice*fxUSD*tradeAmount,
-                                fxTarget,
-                                unitPrice*fxTarget*tradeAmount
-                );
-                result.add(flat);
+            JsonNode root = MAPPER.readTree(json);
+            JsonNode fxRates = root.path("data").path("currencyByCode").path("fxRates");
+            if (root.has("errors") || !fxRates.isArray()) {
+                throw new IllegalStateException("FA answered the FX rate query without rates: " + root.path("errors"));
+            }
+            Map<LocalDate, Double> rates = new HashMap<>();
+            for (JsonNode rate : fxRates) {
+                if (rate.hasNonNull("date") && rate.hasNonNull("rate")) {
+                    rates.put(LocalDate.parse(rate.get("date").asText()), rate.get("rate").asDouble());
+                }
             }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to parse transactions", e);
+            return rates;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to parse FX rates", e);
         }
+    }
+
+    private static Map<String, ReportSummary.Flow> toCents(Map<String, CashFlowSummary.Flow> flows) {
+        Map<String, ReportSummary.Flow> result = new LinkedHashMap<>();
+        flows.forEach((group, flow) -> result.put(group, toCents(flow)));
         return result;
     }
 
-    // Handles none/null/missing values to "" for consistency
-    private String safeText(JsonNode node) {
-        return node.isMissingNode() || node.isNull() ? "" : node.asText();
+    // Rounded the way the CSV's DecimalFormat rounds (half even on the exact double)
+    private static ReportSummary.Flow toCents(CashFlowSummary.Flow flow) {
+        return new ReportSummary.Flow(cents(flow.cashIn()), cents(flow.cashOut()), cents(flow.net()));
     }
 
+    private static BigDecimal cents(double amount) {
+        return new BigDecimal(amount).setScale(2, RoundingMode.HALF_EVEN);
+    }
 
-    // Specifically to hit the conditions of the project scope
-    private String convertToCsv(List<FlatTransaction> transactions) {
-        StringBuilder csv = new StringBuilder();
-
-        csv.append("portfolio,security,isin,currency,quantity,unit_price,trade_amount,type,trade_date,settlement_date\n");
-
-        for (FlatTransaction tx : transactions) {
-            csv.append(String.format(
-                    "%s,%s,%s,%s,%.2f,%.2f,%.2f,%s,%s,%s\n",
-                    safe(tx.getPortfolioShortName()),
-                    safe(tx.getSecurityName()),
-                    safe(tx.getSecurityISIN()),
-                    safe(tx.getCurrencyCode()),
-                    tx.getQuantity() != null ? tx.getQuantity() : 0.0,
-                    tx.getUnitPrice() != null ? tx.getUnitPrice() : 0.0,
-                    tx.getTradeAmount() != null ? tx.getTradeAmount() : 0.0,
-                    safe(tx.getTypeName()),
-                    safe(tx.getTransactionDate()),
-                    safe(tx.getSettlementDate())
-            ));
+    private List<List<Long>> chunk(List<Long> portfolioIds) {
+        List<List<Long>> chunks = new ArrayList<>();
+        for (int i = 0; i < portfolioIds.size(); i += batchChunkSize) {
+            chunks.add(portfolioIds.subList(i, Math.min(portfolioIds.size(), i + batchChunkSize)));
         }
+        return chunks;
+    }
+
+
+    // parse/render/summary helpers are package-private so the JMH benchmarks (src/jmh/java, -Pjmh) can drive them directly
+    TransactionBatch parseTransactions(String json) {
+        return metrics.parse(false).record(() -> {
+            TransactionBatch result = new TransactionBatch();
+            TransactionStreamParser.parse(json, result);
+            return result;
+        });
+    }
+
+
+    // Specifically to hit the conditions of the project scope
+    String convertToCsv(TransactionBatch transactions) {
+        CsvEncoder csv = new CsvEncoder(RAW_HEADER.length() + transactions.size() * 96);
+
+        csv.raw(RAW_HEADER);
+        writeCsvRows(csv, transactions);
 
         return csv.toString();
     }
 
+    // Big batches are rendered in ranges on the render pool and appended in order, small ones straight into csv
+    private void writeCsvRows(CsvEncoder csv, TransactionBatch tx) {
+        String mode = ReportMetrics.mode(false);
+        boolean parallel = renderer.isParallel(tx.size());
+        metrics.stage("render", mode, "none").record(() -> renderer.render(tx.size(), (from, to) -> {
+            CsvEncoder range = parallel ? new CsvEncoder((to - from) * 96) : csv;
+            for (int row = from; row < to; row++) {
+                writeCsvRow(range, tx, row);
+            }
+            return range;
+        }, range -> {
+            if (parallel) {
+                csv.append(range);
+            }
+        }));
+        metrics.rows(mode, "none", tx.size());
+    }
+
+    private void writeCsvRow(CsvEncoder csv, TransactionBatch tx, int row) {
+        csv.field(tx.portfolioShortName(row)).comma()
+                .field(tx.securityName(row)).comma()
+                .field(tx.securityISIN(row)).comma()
+                .field(tx.currencyCode(row)).comma()
+                .fixed2(tx.quantity(row)).comma()
+                .fixed2(tx.unitPrice(row)).comma()
+                .fixed2(tx.tradeAmount(row)).comma()
+                .field(tx.typeName(row)).comma();
+        isoDate(csv, tx, row, true).comma();
+        isoDate(csv, tx, row, false).newline();
+    }
+
+    // Plain dates are written from the epoch day, anything else exactly as it came in
+    private CsvEncoder isoDate(CsvEncoder csv, TransactionBatch tx, int row, boolean transactionDate) {
+        int day = transactionDate ? tx.transactionDay(row) : tx.settlementDay(row);
+        if (day != TransactionBatch.NO_DATE) {
+            return csv.isoDate(day);
+        }
+        return csv.field(transactionDate ? tx.transactionDate(row) : tx.settlementDate(row));
+    }
+
     // CSV more so for humans to read in a financial report way
-    private String convertToHumanCsv(List<FlatTransaction> transactions) {
-        StringBuilder csv = new StringBuilder("\uFEFF");
-
-        csv.append("Portfolio Short Name,Security Name,ISIN,Currency Code,Quantity,Unit Price,Trade Amount,Notional (USD), Target FX Rate, Notional (Target), Type Name,Transaction Date,Settlement Date\n");
-
-        transactions.sort(Comparator
-                .comparing(FlatTransaction::getTypeName, Comparator.nullsLast(String::compareToIgnoreCase))
-                .thenComparing(FlatTransaction::getTransactionDate, Comparator.nullsLast(String::compareTo))
-        );
-
-        for (FlatTransaction tx : transactions) {
-            boolean skipAmountFields = tx.getTypeName() != null &&
-                    (tx.getTypeName().equalsIgnoreCase("Split") ||
-                            tx.getTypeName().equalsIgnoreCase("Add Contract"));
-
-            String quantity = skipAmountFields ? "" : formatDouble(tx.getQuantity());
-            String unitPrice = skipAmountFields ? "" : formatDouble(tx.getUnitPrice());
-            String tradeAmount = skipAmountFields ? "" : formatDouble(tx.getTradeAmount());
-            String fxTarget = skipAmountFields ? "" : formatDouble(tx.getTargetFXValue());
-            String USDNotionalPrice = skipAmountFields ? "" : formatDouble(tx.getNotionalPriceUSD());
-            String targetNotionalPrice = skipAmountFields ? "" : formatDouble(tx.getNotionalPriceTarget());
-
-
-
-            csv.append(String.format(
-                    "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n",
-                    safe(tx.getPortfolioShortName()),
-                    safe(tx.getSecurityName()),
-                    safe(tx.getSecurityISIN()),
-                    safe(tx.getCurrencyCode()),
-                    quantity,
-                    unitPrice,
-                    tradeAmount,
-                    USDNotionalPrice,
-                    fxTarget,
-                    targetNotionalPrice,
-                    safe(tx.getTypeName()),
-                    formatDate(tx.getTransactionDate()),
-                    formatDate(tx.getSettlementDate())
-            ));
-        }
-        double[] summary = summarizeCashFlows(transactions);
-        csv.append("\nSummary (USD),,,\n");
-        csv.append(String.format("Total Cash In:,,,\"%s\"\n", HUMAN_MONEY.format(summary[0])));
-        csv.append(String.format("Total Cash Out:,,,\"%s\"\n", HUMAN_MONEY.format(summary[1])));
-        csv.append(String.format("Net Flow:,,,\"%s\"\n", HUMAN_MONEY.format(summary[0] - summary[1])));
+    String convertToHumanCsv(TransactionBatch transactions) {
+        return convertToHumanCsv(transactions, TargetRates.of(transactions));
+    }
 
+    String convertToHumanCsv(TransactionBatch transactions, TargetRates rates) {
+        CsvEncoder csv = new CsvEncoder(HUMAN_HEADER.length() + transactions.size() * (100 + 28 * rates.currencies().size()));
+        writeHumanCsv(csv, transactions, rates);
         return csv.toString();
     }
 
+    // Target FX rate of every row per target currency, rates[target][row], NaN where it isn't known
+    record TargetRates(List<String> currencies, double[][] rates) {
+        static TargetRates of(TransactionBatch tx) {
+            double[] rates = new double[tx.size()];
+            for (int row = 0; row < rates.length; row++) {
+                rates[row] = tx.targetFXValue(row);
+            }
+            return new TargetRates(List.of("Target"), new double[][]{rates});
+        }
 
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", "");
+        String header() {
+            if (currencies.size() == 1) {
+                return HUMAN_HEADER; // one target keeps the columns (and names) the report always had
+            }
+            StringBuilder header = new StringBuilder(HUMAN_HEADER_START);
+            for (String currency : currencies) {
+                header.append(" Target FX Rate (").append(currency).append("), Notional (").append(currency).append("),");
+            }
+            return header.append(HUMAN_HEADER_END).toString();
+        }
     }
 
-    private String formatDouble(Double d) {
-        return d == null ? "" : MONEY.format(d);
+    // Rendered rows of the pretty report plus the cash flow summary of those rows, filled in the same pass
+    private record HumanRows(CsvEncoder csv, CashFlowSummary summary) {
     }
 
-    private String formatDate(String dateStr) {
-        try {
-            LocalDate date = LocalDate.parse(dateStr);
-            return date.format(DATE_FORMAT);
-        } catch (Exception e) {
-            return "";
+    private void writeHumanCsv(CsvEncoder csv, TransactionBatch tx, TargetRates rates) {
+        csv.raw('\uFEFF');
+
+        csv.raw(rates.header());
+
+        String mode = ReportMetrics.mode(true);
+        String currency = ReportMetrics.currency(rates.currencies());
+        int[] rows = metrics.time("sort", mode, currency, () -> HumanRowOrder.of(tx));
+        CashFlowSummary summary = new CashFlowSummary(tx, cashFlowClassifier);
+        Timer.Sample render = Timer.start();
+
+        // Each range sums its own rows in sorted order and the ranges are combined in order
+        boolean parallel = renderer.isParallel(rows.length);
+        renderer.render(rows.length, (from, to) -> {
+            HumanRows range = parallel
+                    ? new HumanRows(new CsvEncoder((to - from) * 128), new CashFlowSummary(tx, cashFlowClassifier))
+                    : new HumanRows(csv, summary);
+            writeHumanRows(range, tx, rates, rows, from, to);
+            return range;
+        }, range -> {
+            if (parallel) {
+                csv.append(range.csv());
+                summary.merge(range.summary());
+            }
+        });
+
+        CashFlowSummary.Flow total = summary.total();
+        csv.raw("\nSummary (USD),,,\n");
+        csv.raw("Total Cash In:,,,\"").humanMoney(total.cashIn()).raw("\"\n");
+        csv.raw("Total Cash Out:,,,\"").humanMoney(total.cashOut()).raw("\"\n");
+        csv.raw("Net Flow:,,,\"").humanMoney(total.net()).raw("\"\n");
+
+        writeSubtotals(csv, "By Currency (USD)", summary.byCurrency());
+        writeSubtotals(csv, "By Type (USD)", summary.byType());
+        render.stop(metrics.stage("render", mode, currency));
+        metrics.rows(mode, currency, rows.length);
+    }
+
+    private void writeSubtotals(CsvEncoder csv, String title, Map<String, CashFlowSummary.Flow> flows) {
+        if (flows.isEmpty()) {
+            return;
+        }
+        csv.newline().raw(title).raw(",Cash In,Cash Out,Net Flow\n");
+        for (Map.Entry<String, CashFlowSummary.Flow> entry : flows.entrySet()) {
+            CashFlowSummary.Flow flow = entry.getValue();
+            csv.field(entry.getKey())
+                    .raw(",\"").humanMoney(flow.cashIn())
+                    .raw("\",\"").humanMoney(flow.cashOut())
+                    .raw("\",\"").humanMoney(flow.net())
+                    .raw("\"\n");
+        }
+    }
+
+    private void writeHumanRows(HumanRows range, TransactionBatch tx, TargetRates rates, int[] rows, int from, int to) {
+        CsvEncoder csv = range.csv();
+        CashFlowSummary summary = range.summary();
+        for (int i = from; i < to; i++) {
+            int row = rows[i];
+            String typeName = tx.typeName(row);
+            boolean skipAmountFields = skipsAmounts(typeName);
+
+            csv.field(tx.portfolioShortName(row)).comma()
+                    .field(tx.securityName(row)).comma()
+                    .field(tx.securityISIN(row)).comma()
+                    .field(tx.currencyCode(row)).comma();
+
+            if (skipAmountFields) {
+                csv.raw(",,,,");
+                for (int t = 0; t < rates.rates().length; t++) {
+                    csv.raw(",,");
+                }
+            } else {
+                csv.money(tx.quantity(row)).comma()
+                        .money(tx.unitPrice(row)).comma()
+                        .money(tx.tradeAmount(row)).comma()
+                        .money(tx.notionalPriceUSD(row)).comma();
+                for (double[] target : rates.rates()) {
+                    double rate = target[row];
+                    if (Double.isNaN(rate)) {
+                        csv.raw(",,"); // no known rate, left empty rather than shown as 0
+                    } else {
+                        csv.money(rate).comma()
+                                .money(tx.unitPrice(row) * rate * tx.tradeAmount(row)).comma();
+                    }
+                }
+            }
+
+            csv.field(typeName).comma();
+            humanDate(csv, tx, row, true).comma();
+            humanDate(csv, tx, row, false).newline();
+
+            summary.add(row);
+        }
+    }
+
+    // Splits and added contracts have no amounts worth showing, the pretty report leaves them empty
+    private static boolean skipsAmounts(String typeName) {
+        return typeName != null && (typeName.equalsIgnoreCase("Split") || typeName.equalsIgnoreCase("Add Contract"));
+    }
+
+    private CsvEncoder humanDate(CsvEncoder csv, TransactionBatch tx, int row, boolean transactionDate) {
+        int day = transactionDate ? tx.transactionDay(row) : tx.settlementDay(row);
+        if (day != TransactionBatch.NO_DATE) {
+            return csv.date(day);
         }
+        return csv.date(transactionDate ? tx.transactionDate(row) : tx.settlementDate(row));
+    }
+
+    // yyyy-MM-dd -> dd-MMM-yyyy as the pretty report prints it, "" for anything that isn't a valid ISO date
+    String formatDate(String dateStr) {
+        return CsvEncoder.formatDate(dateStr);
     }
 
 
-    private double[] summarizeCashFlows(List<FlatTransaction> transactions) {
-        double in = 0.0;
-        double out = 0.0;
+    // The format side of a streamed report, the same calls for CSV, gzipped CSV and columns
+    private interface ReportWriter {
+        void rawHeader();
+
+        // A whole batch of raw rows
+        void rawRows(TransactionBatch tx);
+
+        // One raw row as it streams in, tx is the stream's reusable buffer
+        void rawRow(TransactionBatch tx, int row);
 
-        for (FlatTransaction tx : transactions) {
-            String type = tx.getTypeName() == null ? "" : tx.getTypeName().toLowerCase();
-            double amount = tx.getNotionalPriceUSD() != null ? tx.getNotionalPriceUSD() : 0.0;
+        // The streamed rows given so far are about to be cleared out of tx (or the stream is over)
+        void endOfBuffer(TransactionBatch tx);
 
-            if (List.of(
-                    "cashflow in", "deposit", "cashflow in (internal)",
-                    "sell", "redemption", "expire").contains(type)) {
-                in += amount;
-            } else if (List.of(
-                    "buy", "cashflow out", "cashflow out (internal)",
-                    "management fee", "subscription", "exercise subscription right (c)").contains(type)) {
-                out += amount;
+        void pretty(TransactionBatch tx, TargetRates rates);
+
+        // Hands what is buffered to the client
+        void flush();
+
+        void finish() throws IOException;
+    }
+
+    private ReportWriter writer(ReportFormat format, OutputStream out) throws IOException {
+        OutputStream body = format.open(out);
+        return format == ReportFormat.COLUMNAR
+                ? new ColumnarWriter(new ColumnarEncoder(body), body)
+                : new CsvWriter(new CsvEncoder(new OutputStreamWriter(body, StandardCharsets.UTF_8)), body);
+    }
+
+    private final class CsvWriter implements ReportWriter {
+        private final CsvEncoder csv;
+        private final OutputStream body;
+
+        CsvWriter(CsvEncoder csv, OutputStream body) {
+            this.csv = csv;
+            this.body = body;
+        }
+
+        @Override
+        public void rawHeader() {
+            csv.raw(RAW_HEADER);
+        }
+
+        @Override
+        public void rawRows(TransactionBatch tx) {
+            writeCsvRows(csv, tx);
+        }
+
+        @Override
+        public void rawRow(TransactionBatch tx, int row) {
+            writeCsvRow(csv, tx, row);
+        }
+
+        @Override
+        public void endOfBuffer(TransactionBatch tx) {
+            // rows are already in the encoder
+        }
+
+        @Override
+        public void pretty(TransactionBatch tx, TargetRates rates) {
+            writeHumanCsv(csv, tx, rates);
+        }
+
+        @Override
+        public void flush() {
+            csv.flush();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            csv.flush();
+            ReportFormat.finish(body);
+        }
+    }
+
+    // Streamed rows are collected as a range of the buffer and written as one block before the buffer is cleared
+    private final class ColumnarWriter implements ReportWriter {
+        private final ColumnarEncoder columns;
+        private final OutputStream body;
+        private int pendingFrom = -1;
+        private int pendingTo;
+
+        ColumnarWriter(ColumnarEncoder columns, OutputStream body) {
+            this.columns = columns;
+            this.body = body;
+        }
+
+        @Override
+        public void rawHeader() {
+            columns.header(RAW_COLUMNS);
+        }
+
+        @Override
+        public void rawRows(TransactionBatch tx) {
+            String mode = ReportMetrics.mode(false);
+            metrics.stage("render", mode, "none").record(() -> columns.rows(RAW_COLUMNS, tx, null, 0, tx.size()));
+            metrics.rows(mode, "none", tx.size());
+        }
+
+        @Override
+        public void rawRow(TransactionBatch tx, int row) {
+            if (pendingFrom < 0) {
+                pendingFrom = row;
+            }
+            pendingTo = row + 1;
+        }
+
+        @Override
+        public void endOfBuffer(TransactionBatch tx) {
+            if (pendingFrom >= 0) {
+                columns.rows(RAW_COLUMNS, tx, null, pendingFrom, pendingTo);
+                pendingFrom = -1;
             }
         }
-        return new double[]{in, out};
+
+        // The pretty report's rows in its order, unformatted. The summary footer isn't repeated, /report/summary has it
+        @Override
+        public void pretty(TransactionBatch tx, TargetRates rates) {
+            String mode = ReportMetrics.mode(true);
+            String currency = ReportMetrics.currency(rates.currencies());
+            int[] rows = metrics.time("sort", mode, currency, () -> HumanRowOrder.of(tx));
+            List<ColumnarEncoder.Column> layout = prettyColumns(rates);
+            metrics.stage("render", mode, currency).record(() -> {
+                columns.header(layout);
+                columns.rows(layout, tx, rows, 0, rows.length);
+            });
+            metrics.rows(mode, currency, rows.length);
+        }
+
+        @Override
+        public void flush() {
+            columns.flush();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            columns.end();
+            ReportFormat.finish(body);
+        }
+    }
+
+    // Columns of the pretty report, amounts are NaN on the rows the CSV leaves them empty
+    private static List<ColumnarEncoder.Column> prettyColumns(TargetRates rates) {
+        List<ColumnarEncoder.Column> columns = new ArrayList<>(RAW_COLUMNS.subList(0, 4));
+        columns.add(amount("quantity", TransactionBatch::quantity));
+        columns.add(amount("unit_price", TransactionBatch::unitPrice));
+        columns.add(amount("trade_amount", TransactionBatch::tradeAmount));
+        columns.add(amount("notional_usd", TransactionBatch::notionalPriceUSD));
+        for (int t = 0; t < rates.currencies().size(); t++) {
+            double[] target = rates.rates()[t];
+            String currency = rates.currencies().get(t);
+            columns.add(amount("fx_rate_" + currency, (tx, row) -> target[row]));
+            columns.add(amount("notional_" + currency, (tx, row) -> tx.unitPrice(row) * target[row] * tx.tradeAmount(row)));
+        }
+        columns.addAll(RAW_COLUMNS.subList(7, 10));
+        return columns;
+    }
+
+    private static ColumnarEncoder.Column amount(String name, ColumnarEncoder.NumberValue value) {
+        return ColumnarEncoder.Column.number(name, (tx, row) -> skipsAmounts(tx.typeName(row)) ? Double.NaN : value.of(tx, row));
+    }
+
+    double[] summarizeCashFlows(TransactionBatch transactions) {
+        CashFlowSummary summary = new CashFlowSummary(transactions, cashFlowClassifier);
+        for (int row = 0; row < transactions.size(); row++) {
+            summary.add(row);
+        }
+        return new double[]{summary.total().cashIn(), summary.total().cashOut()};
     }
 
 
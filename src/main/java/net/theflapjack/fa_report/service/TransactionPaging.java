@@ -0,0 +1,111 @@
+package net.theflapjack.fa_report.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+// Splits a long or open ended date range into consecutive date windows, sized from the rows per day seen so far
+@Component
+public class TransactionPaging {
+
+    // Inclusive date window, startDate null means "everything up to endDate"
+    record Window(LocalDate from, LocalDate to) {
+        String startDate() {
+            return from == null ? null : from.toString();
+        }
+
+        String endDate() {
+            return to.toString();
+        }
+    }
+
+    private static final int MAX_WINDOW_DAYS = 3660;
+
+    private final boolean enabled;
+    private final int thresholdDays;
+    private final int initialWindowDays;
+    private final int targetRows;
+    private final int concurrency;
+    private final LocalDate historyStart;
+
+    public TransactionPaging(@Value("${fa.paging.enabled:true}") boolean enabled,
+                             @Value("${fa.paging.threshold-days:730}") int thresholdDays,
+                             @Value("${fa.paging.initial-window-days:365}") int initialWindowDays,
+                             @Value("${fa.paging.target-rows:20000}") int targetRows,
+                             @Value("${fa.paging.concurrency:4}") int concurrency,
+                             @Value("${fa.paging.history-start:2000-01-01}") LocalDate historyStart) {
+        this.enabled = enabled;
+        this.thresholdDays = thresholdDays;
+        this.initialWindowDays = Math.max(1, initialWindowDays);
+        this.targetRows = Math.max(1, targetRows);
+        this.concurrency = Math.max(1, concurrency);
+        this.historyStart = historyStart;
+    }
+
+    static TransactionPaging disabled() {
+        return new TransactionPaging(false, 0, 1, 1, 1, LocalDate.EPOCH);
+    }
+
+    int concurrency() {
+        return concurrency;
+    }
+
+    // Windows for the range, or null when it's short enough for one call
+    Plan plan(String startDate, String endDate) {
+        if (!enabled) {
+            return null;
+        }
+        LocalDate end = endDate == null ? LocalDate.now() : LocalDate.parse(endDate);
+        if (startDate == null) {
+            return new Plan(null, historyStart, end);
+        }
+        LocalDate start = LocalDate.parse(startDate);
+        if (ChronoUnit.DAYS.between(start, end) < thresholdDays) {
+            return null;
+        }
+        return new Plan(start, start, end);
+    }
+
+    // Hands out the windows of one fetch in date order. Shared by the threads fetching the pages, hence synchronized
+    final class Plan {
+        private final LocalDate end;
+        private LocalDate next;
+        private boolean openStartPending;
+        private long windowDays = initialWindowDays;
+
+        private Plan(LocalDate start, LocalDate windowsFrom, LocalDate end) {
+            this.end = end;
+            this.openStartPending = start == null;
+            this.next = start == null && windowsFrom.isAfter(end) ? end.plusDays(1) : windowsFrom;
+        }
+
+        // The next window, or null once the end date is covered
+        synchronized Window next() {
+            if (openStartPending) {
+                openStartPending = false;
+                return new Window(null, next.minusDays(1));
+            }
+            if (next.isAfter(end)) {
+                return null;
+            }
+            LocalDate to = next.plusDays(windowDays - 1);
+            if (to.isAfter(end)) {
+                to = end;
+            }
+            Window window = new Window(next, to);
+            next = to.plusDays(1);
+            return window;
+        }
+
+        synchronized void observed(Window window, int rows) {
+            if (window.from() == null) {
+                return; // no idea how many days that covered
+            }
+            long days = ChronoUnit.DAYS.between(window.from(), window.to()) + 1;
+            long sized = rows == 0 ? windowDays * 2 : Math.round((double) targetRows * days / rows);
+            windowDays = Math.max(1, Math.min(MAX_WINDOW_DAYS, sized));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package net.theflapjack.fa_report.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.NumberInput;
+import net.theflapjack.fa_report.model.TransactionBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.IntConsumer;
+
+// Reads the GraphQL response token by token into a TransactionBatch, handing each new row's index to onRow
+class TransactionStreamParser {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final IntConsumer NO_OP = row -> { };
+
+    private TransactionStreamParser() {
+    }
+
+    static void parse(InputStream in, TransactionBatch batch) {
+        parse(in, batch, NO_OP);
+    }
+
+    static void parse(InputStream in, TransactionBatch batch, IntConsumer onRow) {
+        try (JsonParser parser = JSON.createParser(in)) {
+            parse(parser, batch, onRow);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse transactions", e);
+        }
+    }
+
+    static void parse(String json, TransactionBatch batch) {
+        try (JsonParser parser = JSON.createParser(json)) {
+            parse(parser, batch, NO_OP);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse transactions", e);
+        }
+    }
+
+    private static void parse(JsonParser parser, TransactionBatch batch, IntConsumer onRow) throws IOException {
+        boolean foundPortfolios = false;
+
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("GraphQL response is not a JSON object");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("data".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String dataField = parser.currentName();
+                    parser.nextToken();
+                    if ("portfoliosByIds".equals(dataField) && parser.currentToken() == JsonToken.START_ARRAY) {
+                        foundPortfolios = true;
+                        readPortfolios(parser, batch, onRow);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        // Same failure the tree based parser had when data/portfoliosByIds was missing (usually a GraphQL error payload)
+        if (!foundPortfolios) {
+            throw new IOException("No portfoliosByIds in GraphQL response");
+        }
+    }
+
+    // Every element of portfoliosByIds is read, so a query for several ids yields all of their transactions in order
+    private static void readPortfolios(JsonParser parser, TransactionBatch batch, IntConsumer onRow) throws IOException {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("transactions".equals(field) && parser.currentToken() == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        if (parser.currentToken() == JsonToken.START_OBJECT) {
+                            onRow.accept(readTransaction(parser, batch));
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static int readTransaction(JsonParser parser, TransactionBatch batch) throws IOException {
+        String portfolio = "";
+        String securityName = "";
+        String isin = "";
+        String currency = "";
+        String type = "";
+        String transactionDate = "";
+        String settlementDate = "";
+        double quantity = 0.0;
+        double unitPrice = 0.0;
+        double tradeAmount = 0.0;
+        double fxUSD = 0.0;
+        double fxTarget = 0.0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "portfolio" -> portfolio = readNestedText(parser, "shortName");
+                case "security" -> {
+                    if (parser.currentToken() != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        break;
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String securityField = parser.currentName();
+                        parser.nextToken();
+                        if ("name".equals(securityField)) {
+                            securityName = readText(parser);
+                        } else if ("isinCode".equals(securityField)) {
+                            isin = readText(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+                case "currency" -> currency = readNestedText(parser, "code");
+                case "type" -> type = readNestedText(parser, "name");
+                case "quantity" -> quantity = readDouble(parser);
+                case "unitPrice" -> unitPrice = readDouble(parser);
+                case "tradeAmount" -> tradeAmount = readDouble(parser);
+                case "transactionDate" -> transactionDate = readText(parser);
+                case "settlementDate" -> settlementDate = readText(parser);
+                case "fxUSD" -> fxUSD = readDouble(parser);
+                case "fxTarget" -> fxTarget = readDouble(parser);
+                default -> parser.skipChildren();
+            }
+        }
+
+        return batch.add(
+                portfolio,
+                securityName,
+                isin,
+                currency,
+                quantity,
+                unitPrice,
+                tradeAmount,
+                type,
+                transactionDate,
+                settlementDate,
+                unitPrice * fxUSD * tradeAmount,
+                fxTarget,
+                unitPrice * fxTarget * tradeAmount
+        );
+    }
+
+    // { "<field>": "..." } -> "...", anything else -> ""
+    private static String readNestedText(JsonParser parser, String wanted) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return "";
+        }
+        String value = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (wanted.equals(field)) {
+                value = readText(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    // Handles none/null/missing values to "" like the old safeText(JsonNode) did
+    private static String readText(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return "";
+        }
+        if (token.isStructStart()) {
+            parser.skipChildren();
+            return "";
+        }
+        return parser.getText();
+    }
+
+    // Mirrors JsonNode.asDouble(): numbers as-is, numeric strings parsed, everything else 0.0
+    private static double readDouble(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        return switch (token) {
+            case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> parser.getDoubleValue();
+            case VALUE_STRING -> NumberInput.parseAsDouble(parser.getText(), 0.0, false);
+            case VALUE_TRUE -> 1.0;
+            case START_OBJECT, START_ARRAY -> {
+                parser.skipChildren();
+                yield 0.0;
+            }
+            default -> 0.0;
+        };
+    }
+}
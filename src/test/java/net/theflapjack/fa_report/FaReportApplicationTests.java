@@ -6,9 +6,12 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @SpringBootTest
@@ -42,6 +45,15 @@ class FaReportApplicationTests {
 				.andExpect(content().string(containsString("Invalid targetCurrency")));
 	}
 
+	@Test
+	void testOneInvalidCurrencyOfSeveralReturns400() throws Exception {
+		mockMvc.perform(get("/report")
+						.param("portfolioId", "3")
+						.param("targetCurrency", "EUR,XYZ"))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().string(containsString("Invalid targetCurrency")));
+	}
+
 	@Test
 	void testEndDateBeforeStartDateReturns400() throws Exception {
 		mockMvc.perform(get("/report")
@@ -52,4 +64,54 @@ class FaReportApplicationTests {
 				.andExpect(content().string(containsString("endDate must not be before startDate")));
 	}
 
+	@Test
+	void testBatchInvalidCurrencyReturns400() throws Exception {
+		MvcResult result = mockMvc.perform(get("/report/batch")
+						.param("portfolioIds", "3,4")
+						.param("targetCurrency", "XYZ"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().string(containsString("Invalid targetCurrency")));
+	}
+
+	@Test
+	void testReactiveInvalidCurrencyReturns400() throws Exception {
+		MvcResult result = mockMvc.perform(get("/report/reactive")
+						.param("portfolioId", "3")
+						.param("targetCurrency", "XYZ"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().string(containsString("Invalid targetCurrency")));
+	}
+
+
+	@Test
+	void testSummaryInvalidDateFormatReturns400() throws Exception {
+		mockMvc.perform(get("/report/summary")
+						.param("portfolioId", "3")
+						.param("endDate", "2023/12/31"))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().string(containsString("Dates must be in ISO format")));
+	}
+
+	@Test
+	void testJobInvalidCurrencyReturns400() throws Exception {
+		mockMvc.perform(post("/report/jobs")
+						.param("portfolioId", "3")
+						.param("targetCurrency", "XYZ"))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().string(containsString("Invalid targetCurrency")));
+	}
+
+	@Test
+	void testUnknownJobReturns404() throws Exception {
+		mockMvc.perform(get("/report/jobs/no-such-job"))
+				.andExpect(status().isNotFound());
+	}
 }
@@ -0,0 +1,165 @@
+package net.theflapjack.fa_report.auth;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenManagerTests {
+
+	// Slow fake OAuth server, logins are valid for expiresIn seconds and refreshed tokens for 5 minutes
+	static class FakeOAuthClient extends OAuthClient {
+		final AtomicInteger logins = new AtomicInteger();
+		final AtomicInteger refreshes = new AtomicInteger();
+		final long expiresIn;
+		volatile boolean refreshFails;
+		volatile boolean loginFails;
+		volatile String refreshToken = "\"r\"";
+
+		FakeOAuthClient(long expiresIn) {
+			super("http://localhost");
+			this.expiresIn = expiresIn;
+		}
+
+		@Override
+		public Mono<String> getAccessTokenMono(String username, String password) {
+			if (loginFails) {
+				return Mono.error(new IllegalStateException("login rejected"));
+			}
+			return Mono.fromSupplier(() -> token("login-" + logins.incrementAndGet(), expiresIn)).delayElement(Duration.ofMillis(100));
+		}
+
+		@Override
+		public Mono<String> refreshAccessTokenMono(String refreshToken) {
+			if (refreshFails) {
+				return Mono.error(new IllegalStateException("refresh rejected"));
+			}
+			return Mono.fromSupplier(() -> token("refresh-" + refreshes.incrementAndGet(), 300));
+		}
+
+		private String token(String value, long validFor) {
+			return "{\"access_token\":\"" + value + "\",\"refresh_token\":" + refreshToken + ",\"expires_in\":" + validFor + "}";
+		}
+	}
+
+	@Test
+	void testConcurrentCallersShareOneLogin() throws Exception {
+		FakeOAuthClient oauth = new FakeOAuthClient(300);
+		TokenManager tokens = new TokenManager(oauth, new SimpleMeterRegistry(), Duration.ofSeconds(60));
+
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				results.add(pool.submit(() -> tokens.getValidAccessToken("user", "pass")));
+			}
+			for (Future<String> result : results) {
+				assertEquals("login-1", result.get());
+			}
+		} finally {
+			pool.shutdownNow();
+			tokens.shutdown();
+		}
+		assertEquals(1, oauth.logins.get());
+	}
+
+	@Test
+	void testTokenIsRenewedInTheBackgroundBeforeExpiry() throws Exception {
+		// valid for 2s, renewal due 1.5s before that
+		FakeOAuthClient oauth = new FakeOAuthClient(32);
+		TokenManager tokens = new TokenManager(oauth, new SimpleMeterRegistry(), Duration.ofMillis(1500));
+		try {
+			assertEquals("login-1", tokens.getValidAccessToken("user", "pass"));
+
+			Thread.sleep(1000);
+
+			assertEquals(1, oauth.refreshes.get());
+			assertEquals("refresh-1", tokens.getValidAccessToken("user", "pass"));
+		} finally {
+			tokens.shutdown();
+		}
+	}
+
+	@Test
+	void testFailedRefreshFallsBackToLogin() throws Exception {
+		FakeOAuthClient oauth = new FakeOAuthClient(32);
+		oauth.refreshFails = true;
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		TokenManager tokens = new TokenManager(oauth, registry, Duration.ofMillis(1500));
+		try {
+			tokens.getValidAccessToken("user", "pass");
+
+			Thread.sleep(1000);
+
+			assertEquals("login-2", tokens.getValidAccessToken("user", "pass"));
+			assertEquals(1, registry.get("fa.token.refresh").tag("grant", "refresh").tag("outcome", "failure").timer().count());
+		} finally {
+			tokens.shutdown();
+		}
+	}
+
+	@Test
+	void testNullRefreshTokenRenewsByLogin() throws Exception {
+		FakeOAuthClient oauth = new FakeOAuthClient(32);
+		oauth.refreshToken = "null";
+		TokenManager tokens = new TokenManager(oauth, new SimpleMeterRegistry(), Duration.ofMillis(1500));
+		try {
+			assertEquals("login-1", tokens.getValidAccessToken("user", "pass"));
+
+			Thread.sleep(1000);
+
+			assertEquals(0, oauth.refreshes.get());
+			assertEquals("login-2", tokens.getValidAccessToken("user", "pass"));
+		} finally {
+			tokens.shutdown();
+		}
+	}
+
+	@Test
+	void testRenewalByARequestReplacesThePendingRetry() throws Exception {
+		// valid for 2s, renewal due 1.5s before that, a failed renewal is retried after 1s
+		FakeOAuthClient oauth = new FakeOAuthClient(32);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		TokenManager tokens = new TokenManager(oauth, registry, Duration.ofMillis(1500), Duration.ofSeconds(1));
+		try {
+			assertEquals("login-1", tokens.getValidAccessToken("user", "pass"));
+
+			// the scheduled renewal fails, the old token is still good so a retry is scheduled
+			oauth.refreshFails = true;
+			oauth.loginFails = true;
+			await(() -> registry.get("fa.token.refresh.failures").counter().count() == 1);
+			oauth.refreshFails = false;
+			oauth.loginFails = false;
+
+			// a request past renewAt renews before the retry is due
+			assertEquals("login-1", tokens.getValidAccessToken("user", "pass"));
+			await(() -> oauth.refreshes.get() == 1);
+
+			// the retry must not renew again and start a second chain of renewals
+			Thread.sleep(1500);
+			assertEquals(1, oauth.refreshes.get());
+			assertEquals(1, oauth.logins.get());
+			assertEquals("refresh-1", tokens.getValidAccessToken("user", "pass"));
+		} finally {
+			tokens.shutdown();
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "timed out");
+			Thread.sleep(10);
+		}
+	}
+}
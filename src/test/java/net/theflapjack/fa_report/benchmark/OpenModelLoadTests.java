@@ -0,0 +1,228 @@
+package net.theflapjack.fa_report.benchmark;
+
+import net.theflapjack.fa_report.FaReportApplication;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Open model load test of the whole app against the local FA stub, run with mvn test -Ploadtest (options in the README)
+@Tag("loadtest")
+class OpenModelLoadTests {
+
+	private static final Logger logger = LoggerFactory.getLogger(OpenModelLoadTests.class);
+
+	private static final double RATE = Double.parseDouble(System.getProperty("loadtest.rate", "10"));
+	private static final Duration DURATION = duration("loadtest.duration", "PT30S");
+	private static final Duration WARMUP = duration("loadtest.warmup", "PT10S");
+	private static final List<String> MODES = List.of(System.getProperty("loadtest.modes", "raw,pretty,batch").split(","));
+	private static final int TRANSACTIONS = Integer.getInteger("loadtest.transactions", 2000);
+	private static final int BATCH_SIZE = Integer.getInteger("loadtest.batch-size", 5);
+	private static final String START_DATE = System.getProperty("loadtest.start-date", "2020-01-01");
+	private static final String END_DATE = System.getProperty("loadtest.end-date", "2024-12-31");
+	private static final Duration LATENCY = duration("loadtest.latency", "PT0.05S");
+	private static final double ERROR_RATE = Double.parseDouble(System.getProperty("loadtest.error-rate", "0"));
+	private static final int ERROR_STATUS = Integer.getInteger("loadtest.error-status", 503);
+	private static final String APP_ARGS = System.getProperty("loadtest.args", "");
+	private static final String USER = "load";
+	private static final String PASSWORD = "load";
+
+	record Result(String mode, int requests, double offeredRate, double throughput, long[] latencies, int errors,
+				  long peakHeapBytes, long gcCount, long gcMillis) {
+
+		double percentileMillis(double quantile) {
+			int index = (int) Math.ceil(quantile * latencies.length) - 1;
+			return latencies.length == 0 ? 0 : latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-7s requests=%6d  offered=%7.1f req/s  throughput=%7.1f req/s  p50=%7.1fms  p99=%7.1fms  p999=%7.1fms  max=%7.1fms  errors=%d  peakHeap=%5dMB  gc=%d (%dms)",
+					mode, requests, offeredRate, throughput, percentileMillis(0.5), percentileMillis(0.99),
+					percentileMillis(0.999), percentileMillis(1.0), errors, peakHeapBytes >> 20, gcCount, gcMillis);
+		}
+	}
+
+	private final AtomicLong nextPortfolioId = new AtomicLong(1);
+
+	@Test
+	void constantArrivalRate() throws Exception {
+		try (FaApiStub stub = new FaApiStub(TRANSACTIONS, LATENCY)) {
+			stub.errorRate(ERROR_RATE, ERROR_STATUS);
+			List<String> args = new ArrayList<>(List.of(
+					"--server.port=0",
+					"--fa.api.auth-url=" + stub.authUrl(),
+					"--fa.api.graphql-url=" + stub.graphqlUrl(),
+					"--app.auth.username=" + USER,
+					"--app.auth.password=" + new BCryptPasswordEncoder(4).encode(PASSWORD),
+					// retried and failed FA calls would otherwise log a stack trace each
+					"--logging.level.net.theflapjack.fa_report=ERROR",
+					"--logging.level.net.theflapjack.fa_report.benchmark=INFO"));
+			Arrays.stream(APP_ARGS.trim().split("\\s+")).filter(arg -> !arg.isEmpty()).forEach(args::add);
+			ConfigurableApplicationContext app = new SpringApplicationBuilder(FaReportApplication.class)
+					.run(args.toArray(String[]::new));
+
+			ExecutorService clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+			try {
+				int port = Integer.parseInt(app.getEnvironment().getProperty("local.server.port"));
+				HttpClient client = HttpClient.newBuilder()
+						.version(HttpClient.Version.HTTP_1_1)
+						.executor(clientExecutor)
+						.build();
+
+				logger.info("open model load: {} req/s for {} per mode, {} transactions per portfolio from {} to {}, FA latency {}, FA error rate {}",
+						RATE, DURATION, TRANSACTIONS, START_DATE, END_DATE, LATENCY, ERROR_RATE);
+				List<Result> results = new ArrayList<>();
+				for (String mode : MODES) {
+					run(client, port, mode.trim(), WARMUP);
+					System.gc(); // so the peak heap of one mode doesn't start from the garbage of the one before
+					Result result = run(client, port, mode.trim(), DURATION);
+					logger.info("{}", result);
+					results.add(result);
+				}
+
+				if (ERROR_RATE == 0) {
+					results.forEach(result -> assertEquals(0, result.errors(), result.mode() + " had failed requests"));
+				}
+			} finally {
+				clientExecutor.shutdownNow();
+				app.close();
+			}
+		}
+	}
+
+	private Result run(HttpClient client, int port, String mode, Duration duration) throws InterruptedException {
+		int requests = (int) Math.max(1, Math.round(RATE * duration.toNanos() / 1e9));
+		long interval = (long) (1e9 / RATE);
+		String auth = "Basic " + Base64.getEncoder().encodeToString((USER + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		HeapSampler heap = new HeapSampler(memory);
+		long gcCountBefore = gcCount();
+		long gcMillisBefore = gcMillis();
+		Thread sampler = Thread.ofPlatform().daemon().name("loadtest-heap").start(heap);
+
+		long start = System.nanoTime();
+		List<CompletableFuture<long[]>> calls = new ArrayList<>(requests);
+		for (int i = 0; i < requests; i++) {
+			long due = start + i * interval;
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+			}
+			calls.add(client.sendAsync(request(port, mode, auth), HttpResponse.BodyHandlers.discarding())
+					.thenApply(response -> new long[]{System.nanoTime() - due, response.statusCode()})
+					.exceptionally(e -> new long[]{System.nanoTime() - due, -1}));
+		}
+		long lastSent = System.nanoTime();
+
+		long[] latencies = new long[requests];
+		int errors = 0;
+		for (int i = 0; i < requests; i++) {
+			long[] result = calls.get(i).join();
+			latencies[i] = result[0];
+			if (result[1] != 200) {
+				errors++;
+			}
+		}
+		long wall = System.nanoTime() - start;
+		sampler.interrupt();
+		sampler.join();
+		Arrays.sort(latencies);
+
+		return new Result(mode, requests,
+				requests / ((lastSent - start) / 1e9 + 1 / RATE),
+				(requests - errors) / (wall / 1e9),
+				latencies, errors,
+				heap.peak(),
+				gcCount() - gcCountBefore,
+				gcMillis() - gcMillisBefore);
+	}
+
+	// Every request asks for portfolios no earlier one did, so all of them go to FA instead of the caches
+	private HttpRequest request(int port, String mode, String auth) {
+		String path = switch (mode) {
+			case "raw" -> "/report/stream?portfolioId=" + nextPortfolioId.getAndIncrement();
+			case "pretty" -> "/report/stream?pretty=true&portfolioId=" + nextPortfolioId.getAndIncrement();
+			case "batch" -> "/report/batch?portfolioIds=" + LongStream.range(0, BATCH_SIZE)
+					.mapToObj(i -> String.valueOf(nextPortfolioId.getAndIncrement()))
+					.collect(Collectors.joining(","));
+			default -> throw new IllegalArgumentException("Unknown loadtest mode " + mode + ", expected raw, pretty or batch");
+		};
+		if (!START_DATE.isEmpty()) {
+			path += "&startDate=" + START_DATE;
+		}
+		if (!END_DATE.isEmpty()) {
+			path += "&endDate=" + END_DATE;
+		}
+		return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + path))
+				.header("Authorization", auth)
+				.timeout(Duration.ofMinutes(2))
+				.build();
+	}
+
+	private static long gcCount() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+	}
+
+	private static long gcMillis() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+	}
+
+	private static Duration duration(String property, String defaultValue) {
+		return Duration.parse(System.getProperty(property, defaultValue));
+	}
+
+	// Highest used heap seen, every 20ms. Peaks between samples are missed, good enough to compare modes
+	private static final class HeapSampler implements Runnable {
+		private final MemoryMXBean memory;
+		private long peak;
+
+		HeapSampler(MemoryMXBean memory) {
+			this.memory = memory;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		// Once the sampling thread has been interrupted and joined
+		long peak() {
+			return Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package net.theflapjack.fa_report.benchmark;
+
+import net.theflapjack.fa_report.FaReportApplication;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Platform vs virtual threads at 1k concurrent /report calls against a slow local FA stub, run with mvn test -Pbenchmark
+@Tag("benchmark")
+class ThreadModeBenchmarkTests {
+
+	private static final Logger logger = LoggerFactory.getLogger(ThreadModeBenchmarkTests.class);
+
+	private static final int CONCURRENT_REQUESTS = Integer.getInteger("benchmark.requests", 1000);
+	private static final int WARMUP_REQUESTS = Integer.getInteger("benchmark.warmup", 200);
+	private static final Duration UPSTREAM_LATENCY = Duration.ofMillis(200);
+	private static final String USER = "bench";
+	private static final String PASSWORD = "bench";
+
+	record Result(String mode, long wallMillis, double throughput, long p50Millis, long p99Millis, int peakThreads, int errors) {
+		@Override
+		public String toString() {
+			return String.format("%-8s wall=%5dms  throughput=%7.1f req/s  p50=%5dms  p99=%5dms  peakPlatformThreads=%4d  errors=%d",
+					mode, wallMillis, throughput, p50Millis, p99Millis, peakThreads, errors);
+		}
+	}
+
+	@Test
+	void comparePlatformAndVirtualThreads() throws Exception {
+		try (FaApiStub stub = new FaApiStub(50, UPSTREAM_LATENCY)) {
+			Result platform = run(stub, false);
+			Result virtual = run(stub, true);
+
+			logger.info("{}", platform);
+			logger.info("{}", virtual);
+
+			assertEquals(0, platform.errors());
+			assertEquals(0, virtual.errors());
+		}
+	}
+
+	private Result run(FaApiStub stub, boolean virtualThreads) throws Exception {
+		// Passed as command line args so they win over application.properties
+		ConfigurableApplicationContext app = new SpringApplicationBuilder(FaReportApplication.class)
+				.run(
+						"--server.port=0",
+						"--spring.threads.virtual.enabled=" + virtualThreads,
+						"--fa.api.auth-url=" + stub.authUrl(),
+						"--fa.api.graphql-url=" + stub.graphqlUrl(),
+						"--app.auth.username=" + USER,
+						"--app.auth.password=" + new BCryptPasswordEncoder(4).encode(PASSWORD));
+
+		ExecutorService clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+		try {
+			int port = Integer.parseInt(app.getEnvironment().getProperty("local.server.port"));
+			HttpClient client = HttpClient.newBuilder().executor(clientExecutor).build();
+			String auth = "Basic " + Base64.getEncoder().encodeToString((USER + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+
+			// Warm up so the token, class loading and JIT aren't part of the measurement
+			List<CompletableFuture<HttpResponse<Void>>> warmup = new ArrayList<>();
+			for (int i = 0; i < WARMUP_REQUESTS; i++) {
+				warmup.add(client.sendAsync(request(port, -1 - i, auth), HttpResponse.BodyHandlers.discarding()));
+			}
+			warmup.forEach(call -> call.exceptionally(e -> null).join());
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			threads.resetPeakThreadCount();
+
+			long start = System.nanoTime();
+			List<CompletableFuture<long[]>> calls = new ArrayList<>();
+			for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+				long sent = System.nanoTime();
+				// distinct portfolio ids so every request misses the transaction cache and goes upstream
+				calls.add(client.sendAsync(request(port, i + 1, auth), HttpResponse.BodyHandlers.discarding())
+						.thenApply(response -> new long[]{System.nanoTime() - sent, response.statusCode()})
+						.exceptionally(e -> new long[]{System.nanoTime() - sent, -1}));
+			}
+
+			long[] latencies = new long[CONCURRENT_REQUESTS];
+			int errors = 0;
+			for (int i = 0; i < calls.size(); i++) {
+				long[] result = calls.get(i).join();
+				latencies[i] = result[0];
+				if (result[1] != 200) {
+					errors++;
+				}
+			}
+			long wall = System.nanoTime() - start;
+			Arrays.sort(latencies);
+
+			return new Result(
+					virtualThreads ? "virtual" : "platform",
+					wall / 1_000_000,
+					CONCURRENT_REQUESTS / (wall / 1e9),
+					latencies[latencies.length / 2] / 1_000_000,
+					latencies[(int) (latencies.length * 0.99)] / 1_000_000,
+					threads.getPeakThreadCount(),
+					errors);
+		} finally {
+			clientExecutor.shutdownNow();
+			app.close();
+		}
+	}
+
+	private HttpRequest request(int port, long portfolioId, String auth) {
+		return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/report?portfolioId=" + portfolioId))
+				.header("Authorization", auth)
+				.timeout(Duration.ofMinutes(5))
+				.build();
+	}
+}
@@ -0,0 +1,145 @@
+package net.theflapjack.fa_report.cache;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FxRateCacheTests {
+
+	private static final LocalDate TODAY = LocalDate.of(2024, 6, 14);
+
+	private final List<String> loadedRanges = new ArrayList<>();
+	private final MovableClock clock = new MovableClock(TODAY.atTime(12, 0).toInstant(ZoneOffset.UTC));
+
+	// A rate on every weekday, 1 + day of month / 100, and nothing for a quote currency called "NONE"
+	private Mono<Map<LocalDate, Double>> fakeFa(String base, String quote, LocalDate from, LocalDate to) {
+		loadedRanges.add(base + "/" + quote + " " + from + ".." + to);
+		Map<LocalDate, Double> rates = new TreeMap<>();
+		for (LocalDate day = from; !day.isAfter(to) && !quote.equals("NONE"); day = day.plusDays(1)) {
+			if (day.getDayOfWeek() != DayOfWeek.SATURDAY && day.getDayOfWeek() != DayOfWeek.SUNDAY) {
+				rates.put(day, 1 + day.getDayOfMonth() / 100.0);
+			}
+		}
+		return Mono.just(rates);
+	}
+
+	private FxRateCache cache() {
+		return new FxRateCache(List.of("USD", "EUR"), 7, Duration.ofMinutes(15), 4, clock);
+	}
+
+	private static FxRateCache.RateRange range(String base, String quote, String from, String to) {
+		return new FxRateCache.RateRange(base, quote, LocalDate.parse(from), LocalDate.parse(to));
+	}
+
+	private static int day(String date) {
+		return (int) LocalDate.parse(date).toEpochDay();
+	}
+
+	@Test
+	void testRangesAlreadyCachedAreNotLoadedAgain() {
+		FxRateCache rates = cache();
+
+		rates.fill(List.of(range("EUR", "USD", "2023-01-09", "2023-01-31"), range("GBP", "USD", "2023-01-09", "2023-01-20")), this::fakeFa).block();
+		rates.fill(List.of(range("EUR", "USD", "2023-01-12", "2023-01-20")), this::fakeFa).block();
+		rates.fill(List.of(range("EUR", "USD", "2023-01-09", "2023-02-10")), this::fakeFa).block();
+
+		assertEquals(List.of(
+				"EUR/USD 2023-01-02..2023-01-31",
+				"GBP/USD 2023-01-02..2023-01-20",
+				"EUR/USD 2023-02-01..2023-02-10"), loadedRanges);
+		assertEquals(1.10, rates.rate("EUR", "USD", day("2023-02-10")));
+	}
+
+	@Test
+	void testDayWithoutARateUsesTheLastOneBeforeIt() {
+		FxRateCache rates = cache();
+		rates.fill(List.of(range("EUR", "USD", "2023-01-09", "2023-01-31")), this::fakeFa).block();
+
+		// the 7th and 8th are a weekend, the 9th is the first day asked for so the lookback covers it
+		assertEquals(1.06, rates.rate("EUR", "USD", day("2023-01-08")));
+		assertArrayEquals(new double[]{1.06, 1.06, 1.09}, rates.rates("EUR", "USD", day("2023-01-07"), day("2023-01-09")));
+		assertEquals(1.0, rates.rate("USD", "USD", day("2023-01-08")));
+		assertEquals(Double.NaN, rates.rate("EUR", "GBP", day("2023-01-09")));
+		assertEquals(Double.NaN, rates.rate("EUR", "USD", day("2022-12-01")));
+	}
+
+	@Test
+	void testLoadWithoutRatesStaysUnknownAndIsLoadedAgain() {
+		FxRateCache rates = cache();
+		List<FxRateCache.RateRange> closedMonth = List.of(range("EUR", "NONE", "2023-01-09", "2023-01-31"));
+
+		rates.fill(closedMonth, this::fakeFa).block();
+		assertEquals(Double.NaN, rates.rate("EUR", "NONE", day("2023-01-20")));
+
+		rates.fill(closedMonth, this::fakeFa).block();
+		assertEquals(2, loadedRanges.size());
+	}
+
+	@Test
+	void testTodayIsLoadedAgainOnceStale() {
+		FxRateCache rates = cache();
+		List<FxRateCache.RateRange> thisMonth = List.of(range("EUR", "USD", "2024-06-03", TODAY.toString()));
+
+		rates.fill(thisMonth, this::fakeFa).block();
+		clock.advance(Duration.ofMinutes(10));
+		rates.fill(thisMonth, this::fakeFa).block();
+		assertEquals(1, loadedRanges.size());
+
+		clock.advance(Duration.ofMinutes(10));
+		rates.fill(thisMonth, this::fakeFa).block();
+		assertEquals("EUR/USD 2024-06-07..2024-06-14", loadedRanges.get(1));
+	}
+
+	@Test
+	void testCurrenciesWithRatesBecomeSupported() {
+		FxRateCache rates = cache();
+		assertTrue(rates.supports("eur"));
+		assertFalse(rates.supports("SEK"));
+
+		rates.fill(List.of(range("USD", "SEK", "2023-01-09", "2023-01-10"), range("USD", "NONE", "2023-01-09", "2023-01-10")),
+				this::fakeFa).block();
+
+		assertTrue(rates.supports("SEK"));
+		assertFalse(rates.supports("NONE"));
+	}
+
+	private static final class MovableClock extends Clock {
+		private Instant now;
+
+		private MovableClock(Instant now) {
+			this.now = now;
+		}
+
+		void advance(Duration duration) {
+			now = now.plus(duration);
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package net.theflapjack.fa_report.cache;
+
+import net.theflapjack.fa_report.model.FlatTransaction;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderedReportStoreTests {
+
+	private static final TransactionCacheKey KEY = TransactionCacheKey.of(3L, "2023-01-01", "2023-12-31");
+
+	@TempDir
+	Path dir;
+
+	private static TransactionBatch batch() {
+		return TransactionBatch.of(List.of(new FlatTransaction()));
+	}
+
+	private static RenderedReportStore.Renderer writing(String csv, AtomicInteger renders) {
+		return out -> {
+			renders.incrementAndGet();
+			out.write(csv.getBytes(StandardCharsets.UTF_8));
+		};
+	}
+
+	@Test
+	void testRepeatRequestIsServedFromTheSameFile() throws Exception {
+		RenderedReportStore store = new RenderedReportStore(new TransactionCache(1000, Duration.ofMinutes(1)), true, dir, DataSize.ofMegabytes(1));
+		TransactionBatch rows = batch();
+		AtomicInteger renders = new AtomicInteger();
+
+		RenderedReportStore.RenderedReport first = store.get(KEY, false, List.of("USD"), rows, writing("a,b\n1,2\n", renders));
+		RenderedReportStore.RenderedReport second = store.get(KEY, false, List.of("USD"), rows, writing("a,b\n1,2\n", renders));
+
+		assertEquals(1, renders.get());
+		assertSame(first, second);
+		assertEquals("a,b\n1,2\n", Files.readString(first.file()));
+		assertEquals(8, first.length());
+		assertTrue(first.etag().startsWith("\"") && first.etag().endsWith("\""));
+
+		// pretty and raw of the same rows are separate files
+		store.get(KEY, true, List.of("USD"), rows, writing("pretty\n", renders));
+		assertEquals(2, renders.get());
+
+		// and so is the pretty report in another set of target currencies
+		store.get(KEY, true, List.of("USD", "EUR"), rows, writing("pretty in two\n", renders));
+		store.get(KEY, true, List.of("USD"), rows, writing("pretty\n", renders));
+		assertEquals(3, renders.get());
+	}
+
+	@Test
+	void testNewBatchIsRenderedAgainButSameContentKeepsTheETag() {
+		RenderedReportStore store = new RenderedReportStore(new TransactionCache(1000, Duration.ofMinutes(1)), true, dir, DataSize.ofMegabytes(1));
+		AtomicInteger renders = new AtomicInteger();
+
+		RenderedReportStore.RenderedReport first = store.get(KEY, false, List.of("USD"), batch(), writing("a\n", renders));
+		RenderedReportStore.RenderedReport same = store.get(KEY, false, List.of("USD"), batch(), writing("a\n", renders));
+		RenderedReportStore.RenderedReport changed = store.get(KEY, false, List.of("USD"), batch(), writing("b\n", renders));
+
+		assertEquals(3, renders.get());
+		assertNotEquals(first.file(), same.file());
+		assertEquals(first.etag(), same.etag());
+		assertNotEquals(first.etag(), changed.etag());
+	}
+
+	@Test
+	void testTransactionCacheRemovalDropsTheRenderedFile() throws Exception {
+		TransactionCache transactions = new TransactionCache(1000, Duration.ofMillis(50));
+		RenderedReportStore store = new RenderedReportStore(transactions, true, dir, DataSize.ofMegabytes(1));
+		TransactionBatch rows = transactions.get(KEY, key -> batch());
+		store.get(KEY, false, List.of("USD"), rows, writing("a\n", new AtomicInteger()));
+		assertEquals(1L, store.stats().get("files"));
+
+		Thread.sleep(100);
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while ((long) store.stats().get("files") > 0 && System.nanoTime() < deadline) {
+			transactions.getIfPresent(KEY); // expiry is noticed on access, the listener runs async after that
+			Thread.sleep(20);
+		}
+		assertEquals(0L, store.stats().get("files"));
+	}
+
+	@Test
+	void testFailedRenderLeavesNoFileBehind() throws Exception {
+		RenderedReportStore store = new RenderedReportStore(new TransactionCache(1000, Duration.ofMinutes(1)), true, dir, DataSize.ofMegabytes(1));
+
+		assertThrows(IllegalStateException.class, () -> store.get(KEY, false, List.of("USD"), batch(), out -> {
+			out.write('x');
+			throw new IllegalStateException("render failed");
+		}));
+
+		try (var files = Files.list(dir)) {
+			assertEquals(0, files.count());
+		}
+		assertEquals(0L, store.stats().get("files"));
+	}
+}
@@ -0,0 +1,108 @@
+package net.theflapjack.fa_report.cache;
+
+import net.theflapjack.fa_report.model.FlatTransaction;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentFileStoreTests {
+
+	@TempDir
+	Path dir;
+
+	private static TransactionBatch month(YearMonth month, int rows) {
+		TransactionBatch batch = new TransactionBatch();
+		for (int i = 0; i < rows; i++) {
+			batch.add(new FlatTransaction("P1", "Security " + i % 7, "US" + i % 7, "USD", 1.0 + i, 10.5, 2.0, "Buy",
+					month.atDay(1 + i % 28).toString(), month.atDay(1 + i % 28).toString(), 10.5 * i, 0.9, 9.45 * i));
+		}
+		return batch;
+	}
+
+	@Test
+	void testMonthsSurviveARestart() {
+		SegmentFileStore store = new SegmentFileStore(true, dir, 0.5);
+		store.write(3L, YearMonth.of(2023, 1), month(YearMonth.of(2023, 1), 50));
+		store.write(3L, YearMonth.of(2023, 2), month(YearMonth.of(2023, 2), 20));
+		store.close();
+
+		SegmentFileStore restarted = new SegmentFileStore(true, dir, 0.5);
+		assertEquals(month(YearMonth.of(2023, 2), 20).asList(), restarted.read(3L, YearMonth.of(2023, 2)).asList());
+		assertEquals(50, restarted.read(3L, YearMonth.of(2023, 1)).size());
+		assertNull(restarted.read(3L, YearMonth.of(2023, 3)));
+		restarted.close();
+	}
+
+	@Test
+	void testTornTailIsCutOff() throws IOException {
+		SegmentFileStore store = new SegmentFileStore(true, dir, 0.5);
+		store.write(3L, YearMonth.of(2023, 1), month(YearMonth.of(2023, 1), 50));
+		store.write(3L, YearMonth.of(2023, 2), month(YearMonth.of(2023, 2), 50));
+		store.close();
+
+		// crash half way through the second block
+		Path file = dir.resolve("p3.seg");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 100);
+		}
+
+		SegmentFileStore restarted = new SegmentFileStore(true, dir, 0.5);
+		assertEquals(50, restarted.read(3L, YearMonth.of(2023, 1)).size());
+		assertNull(restarted.read(3L, YearMonth.of(2023, 2)));
+
+		// appends continue after the last good block
+		restarted.write(3L, YearMonth.of(2023, 2), month(YearMonth.of(2023, 2), 5));
+		restarted.close();
+		assertEquals(5, new SegmentFileStore(true, dir, 0.5).read(3L, YearMonth.of(2023, 2)).size());
+	}
+
+	@Test
+	void testCorruptBlockAndOtherVersionsAreNotRead() throws IOException {
+		SegmentFileStore store = new SegmentFileStore(true, dir, 0.5);
+		store.write(3L, YearMonth.of(2023, 1), month(YearMonth.of(2023, 1), 50));
+		store.write(4L, YearMonth.of(2023, 1), month(YearMonth.of(2023, 1), 50));
+		store.close();
+
+		try (FileChannel channel = FileChannel.open(dir.resolve("p3.seg"), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[]{42}), 200); // flipped byte inside the payload
+		}
+		try (FileChannel channel = FileChannel.open(dir.resolve("p4.seg"), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(4).putInt(0, SegmentFileStore.VERSION + 1), 4);
+		}
+
+		SegmentFileStore restarted = new SegmentFileStore(true, dir, 0.5);
+		assertNull(restarted.read(3L, YearMonth.of(2023, 1)));
+		assertNull(restarted.read(4L, YearMonth.of(2023, 1)));
+		restarted.close();
+	}
+
+	@Test
+	void testRewrittenMonthsAreCompactedAway() throws IOException {
+		SegmentFileStore store = new SegmentFileStore(true, dir, 0.5);
+		for (int i = 0; i < 10; i++) {
+			store.write(3L, YearMonth.of(2023, 1), month(YearMonth.of(2023, 1), 200 + i));
+			store.write(3L, YearMonth.of(2023, 2), month(YearMonth.of(2023, 2), 10));
+		}
+		long size = Files.size(dir.resolve("p3.seg"));
+		assertTrue((long) store.stats().get("compactions") > 0);
+		assertEquals(209, store.read(3L, YearMonth.of(2023, 1)).size());
+		store.close();
+
+		SegmentFileStore restarted = new SegmentFileStore(true, dir, 0.5);
+		assertEquals(209, restarted.read(3L, YearMonth.of(2023, 1)).size());
+		assertEquals(10, restarted.read(3L, YearMonth.of(2023, 2)).size());
+		assertTrue(size < 4 * month(YearMonth.of(2023, 1), 209).encode().remaining());
+		restarted.close();
+	}
+}
@@ -0,0 +1,67 @@
+package net.theflapjack.fa_report.cache;
+
+import net.theflapjack.fa_report.model.FlatTransaction;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionCacheTests {
+
+	private static final TransactionCacheKey KEY = TransactionCacheKey.of(3L, "2023-01-01", "2023-12-31");
+
+	@Test
+	void testConcurrentMissesShareOneLoad() throws Exception {
+		TransactionCache cache = new TransactionCache(1000, Duration.ofMinutes(1));
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<TransactionBatch>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				results.add(pool.submit(() -> cache.get(KEY, key -> {
+					loads.incrementAndGet();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+					return TransactionBatch.of(List.of(new FlatTransaction()));
+				})));
+			}
+			Thread.sleep(100);
+			release.countDown();
+
+			for (Future<TransactionBatch> result : results) {
+				assertEquals(1, result.get().size());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		assertEquals(1, loads.get());
+		assertEquals(7L, cache.stats().get("hits"));
+		assertEquals(1L, cache.stats().get("misses"));
+	}
+
+	@Test
+	void testFailedLoadIsNotCached() {
+		TransactionCache cache = new TransactionCache(1000, Duration.ofMinutes(1));
+
+		assertThrows(IllegalStateException.class, () -> cache.get(KEY, key -> {
+			throw new IllegalStateException("upstream down");
+		}));
+		assertNull(cache.getIfPresent(KEY));
+		assertEquals(1, cache.get(KEY, key -> TransactionBatch.of(List.of(new FlatTransaction()))).size());
+	}
+}
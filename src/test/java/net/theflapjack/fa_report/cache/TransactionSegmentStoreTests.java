@@ -0,0 +1,79 @@
+package net.theflapjack.fa_report.cache;
+
+import net.theflapjack.fa_report.model.FlatTransaction;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionSegmentStoreTests {
+
+	private static final Clock NOW = Clock.fixed(LocalDate.of(2024, 6, 15).atStartOfDay().toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+
+	private final List<String> fetchedRanges = new ArrayList<>();
+
+	// One transaction on the 10th of every month in the requested range
+	private TransactionBatch fakeUpstream(LocalDate from, LocalDate to) {
+		fetchedRanges.add(from + ".." + to);
+		TransactionBatch rows = new TransactionBatch();
+		for (LocalDate day = from.withDayOfMonth(10); !day.isAfter(to); day = day.plusMonths(1)) {
+			FlatTransaction tx = new FlatTransaction();
+			tx.setTransactionDate(day.toString());
+			rows.add(tx);
+		}
+		return rows;
+	}
+
+	@Test
+	void testSlidingWindowOnlyFetchesNewMonths() {
+		TransactionSegmentStore store = new TransactionSegmentStore(10_000, Duration.ofMinutes(1), 5, NOW);
+
+		TransactionBatch year = store.get(3L, LocalDate.of(2023, 1, 1), LocalDate.of(2023, 12, 31), this::fakeUpstream);
+		assertEquals(12, year.size());
+
+		TransactionBatch slid = store.get(3L, LocalDate.of(2023, 1, 1), LocalDate.of(2024, 1, 31), this::fakeUpstream);
+		assertEquals(13, slid.size());
+		assertEquals("2024-01-10", slid.transactionDate(12));
+
+		assertEquals(List.of("2023-01-01..2023-12-31", "2024-01-01..2024-01-31"), fetchedRanges);
+	}
+
+	@Test
+	void testPartialMonthsAreTrimmedToRequestedDates() {
+		TransactionSegmentStore store = new TransactionSegmentStore(10_000, Duration.ofMinutes(1), 5, NOW);
+
+		List<FlatTransaction> rows = store.get(3L, LocalDate.of(2023, 1, 15), LocalDate.of(2023, 3, 5), this::fakeUpstream).asList();
+
+		assertEquals(List.of("2023-02-10"), rows.stream().map(FlatTransaction::getTransactionDate).toList());
+	}
+
+	@Test
+	void testRecentMonthsAreNotClosed() {
+		TransactionSegmentStore store = new TransactionSegmentStore(10_000, Duration.ofMinutes(1), 5, NOW);
+
+		assertTrue(store.isClosed(java.time.YearMonth.of(2024, 5)));
+		assertFalse(store.isClosed(java.time.YearMonth.of(2024, 6)));
+	}
+
+	@Test
+	void testClosedMonthsComeBackFromDiskAfterARestart(@TempDir Path dir) {
+		TransactionSegmentStore store = new TransactionSegmentStore(10_000, Duration.ofMinutes(1), 5, NOW, new SegmentFileStore(true, dir, 0.5));
+		store.get(3L, LocalDate.of(2024, 3, 1), LocalDate.of(2024, 6, 30), this::fakeUpstream);
+
+		TransactionSegmentStore restarted = new TransactionSegmentStore(10_000, Duration.ofMinutes(1), 5, NOW, new SegmentFileStore(true, dir, 0.5));
+		TransactionBatch rows = restarted.get(3L, LocalDate.of(2024, 3, 1), LocalDate.of(2024, 6, 30), this::fakeUpstream);
+
+		assertEquals(4, rows.size());
+		// March to May are closed and read from disk, only the open month goes upstream again
+		assertEquals(List.of("2024-03-01..2024-06-30", "2024-06-01..2024-06-30"), fetchedRanges);
+	}
+}
@@ -0,0 +1,53 @@
+package net.theflapjack.fa_report.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GraphQLQueryTests {
+
+	@Test
+	void testMinifyKeepsNamesApartAndStringsAsTheyAre() {
+		String query = """
+				# all of them
+				query Transactions($ids: [Long], $startDate: String) {
+				  portfoliosByIds(ids: $ids) {
+				    transactions(status: "OK  \\"x\\"", startDate: $startDate) {
+				      portfolio: parentPortfolio { shortName }
+				    }
+				  }
+				}
+				""";
+
+		assertEquals("query Transactions($ids:[Long],$startDate:String){portfoliosByIds(ids:$ids){"
+				+ "transactions(status:\"OK  \\\"x\\\"\",startDate:$startDate){portfolio:parentPortfolio{shortName}}}}",
+				GraphQLQuery.minify(query));
+		assertEquals("Transactions", GraphQLQuery.of(query).operation());
+		assertEquals("anonymous", GraphQLQuery.of("{ x }").operation());
+	}
+
+	@Test
+	void testBodyIsValidJsonWithTheQueryAndVariables() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FaQueries.TRANSACTIONS.writeBody(json -> {
+			json.writeArrayFieldStart("ids");
+			json.writeNumber(3L);
+			json.writeNumber(4L);
+			json.writeEndArray();
+			json.writeStringField("startDate", "2023-01-01");
+			json.writeStringField("endDate", "");
+		}, out);
+
+		JsonNode body = new ObjectMapper().readTree(out.toByteArray());
+		assertEquals(FaQueries.TRANSACTIONS.text(), body.get("query").asText());
+		assertTrue(body.get("query").asText().contains("transactions(status:\"OK\""));
+		assertEquals("[3,4]", body.get("variables").get("ids").toString());
+		assertEquals("2023-01-01", body.get("variables").get("startDate").asText());
+		assertEquals("", body.get("variables").get("endDate").asText());
+	}
+}
@@ -0,0 +1,92 @@
+package net.theflapjack.fa_report.client;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamLimiterTests {
+
+	private static final GraphQLQuery QUERY = GraphQLQuery.of("query { x }");
+	private static final GraphQLQuery.Variables IDS = json -> {
+		json.writeArrayFieldStart("ids");
+		json.writeNumber(1);
+		json.writeEndArray();
+	};
+
+	private static UpstreamLimiter limiter(int limit, Duration latencyTarget, int maxQueue, Duration queueTimeout) {
+		return new UpstreamLimiter(limit, 1, 20, latencyTarget, 0.5, maxQueue, queueTimeout, Duration.ofSeconds(3));
+	}
+
+	@Test
+	void testFullQueueIsRejectedStraightAway() {
+		UpstreamLimiter limiter = limiter(1, Duration.ofSeconds(5), 1, Duration.ofSeconds(30));
+		Sinks.One<String> first = Sinks.one();
+		AtomicReference<String> queued = new AtomicReference<>();
+
+		limiter.limit(first.asMono()).subscribe();
+		limiter.limit(Mono.just("queued")).subscribe(queued::set);
+		UpstreamBusyException busy = assertThrows(UpstreamBusyException.class,
+				() -> limiter.limit(Mono.just("rejected")).block(Duration.ofSeconds(1)));
+		assertEquals(Duration.ofSeconds(3), busy.getRetryAfter());
+		assertNull(queued.get());
+
+		first.tryEmitValue("done");
+		assertEquals("queued", queued.get()); // got the freed slot
+		assertEquals(0, limiter.stats().get("inFlight"));
+	}
+
+	@Test
+	void testQueuedCallGivesUpAfterQueueTimeout() {
+		UpstreamLimiter limiter = limiter(1, Duration.ofSeconds(5), 10, Duration.ofMillis(50));
+		limiter.limit(Mono.never()).subscribe();
+
+		assertThrows(UpstreamBusyException.class, () -> limiter.limit(Mono.just("late")).block(Duration.ofSeconds(2)));
+		assertEquals(0, limiter.stats().get("waiting"));
+	}
+
+	@Test
+	void testLimitGrowsOnFastCallsAndShrinksOnSlowOnes() {
+		UpstreamLimiter limiter = limiter(4, Duration.ofMillis(100), 10, Duration.ofSeconds(5));
+		// only grows while the slots are actually in use
+		Flux.range(0, 40).flatMap(i -> limiter.limit(Mono.just(i).delayElement(Duration.ofMillis(5))), 4).blockLast();
+		int grown = limiter.currentLimit();
+		assertTrue(grown > 4, "limit should grow, was " + grown);
+
+		limiter.limit(Mono.just("slow").delayElement(Duration.ofMillis(150))).block();
+		assertEquals(grown / 2, limiter.currentLimit(), 1);
+	}
+
+	@Test
+	void testOverloadedStubIsRetried() throws Exception {
+		try (FaApiStub stub = new FaApiStub(5, Duration.ZERO)) {
+			UpstreamLimiter limiter = limiter(4, Duration.ofSeconds(5), 10, Duration.ofSeconds(5));
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			FaGraphQLClient client = new FaGraphQLClient(stub.graphqlUrl(), new ReactorClientHttpConnector(), -1,
+					limiter, registry, 2, Duration.ofMillis(10));
+
+			stub.failNext(2, 503);
+			String response = client.sendQuery(QUERY, IDS, "token");
+			assertEquals(FaApiStub.syntheticResponse(List.of(1L), 5), response);
+			assertEquals(3, stub.graphqlCalls());
+
+			stub.failNext(3, 429); // one more than the retries
+			assertThrows(RuntimeException.class, () -> client.sendQuery(QUERY, IDS, "token"));
+			assertEquals(6, stub.graphqlCalls());
+
+			// one timing per call the caller made, retries included
+			assertEquals(1, registry.get("fa.graphql.request").tag("outcome", "success").timer().count());
+			assertEquals(1, registry.get("fa.graphql.request").tag("outcome", "failure").timer().count());
+			assertEquals(response.length(), registry.get("fa.graphql.response.bytes").summary().totalAmount());
+		}
+	}
+}
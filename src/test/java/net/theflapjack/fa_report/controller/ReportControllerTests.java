@@ -0,0 +1,112 @@
+package net.theflapjack.fa_report.controller;
+
+import net.theflapjack.fa_report.service.ReportFormat;
+import net.theflapjack.fa_report.service.ReportService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+// The streaming endpoints end to end through Spring MVC, with a service that writes a fixed CSV
+@SpringBootTest
+@AutoConfigureMockMvc(addFilters = false)
+class ReportControllerTests {
+
+	private static final String CSV = "portfolio,security\nP7,Apple\n";
+	private static final String BATCH_CSV = "portfolio,security\nP3,Apple\nP4,Tesla\n";
+	// A row without a target FX rate has empty Target FX Rate and Notional cells, not 0.00
+	private static final String PRETTY_CSV = "Portfolio Short Name,Security Name,ISIN,Currency Code,Quantity,Unit Price,"
+			+ "Trade Amount,Notional (USD), Target FX Rate, Notional (Target), Type Name,Transaction Date,Settlement Date\n"
+			+ "P1,Security 0,US1000000000,EUR,1.00,10.00,1.00,10.80,,,Sell,01-Jan-2020,01-Jan-2020\n";
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@MockitoBean
+	private ReportService reportService;
+
+	private static Object writeCsv(OutputStream out, String csv) throws Exception {
+		out.write(csv.getBytes(StandardCharsets.UTF_8));
+		return null;
+	}
+
+	@Test
+	void testStreamReportReturnsTheStreamedCsv() throws Exception {
+		doAnswer(call -> writeCsv(call.getArgument(4, OutputStream.class), CSV))
+				.when(reportService).streamCsv(eq(7L), any(), any(), eq(ReportFormat.CSV), any());
+
+		MvcResult result = mockMvc.perform(get("/report/stream").param("portfolioId", "7"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=portfolio_7_raw.csv"))
+				.andExpect(content().contentType("text/csv;charset=UTF-8"))
+				.andExpect(content().string(CSV));
+	}
+
+	@Test
+	void testCacheStatsIncludeTheUpstreamLimiter() throws Exception {
+		mockMvc.perform(get("/report/cache/stats"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.upstream.limit").isNumber())
+				.andExpect(jsonPath("$.upstream.inFlight").value(0))
+				.andExpect(jsonPath("$.upstream.rejected").value(0));
+	}
+
+	@Test
+	void testPrettyReportLeavesUnknownTargetRatesEmpty() throws Exception {
+		when(reportService.generateHumanCsv(eq(1L), any(), any(), eq(List.of("EUR")))).thenReturn(PRETTY_CSV);
+
+		mockMvc.perform(get("/report").param("portfolioId", "1").param("pretty", "true").param("targetCurrency", "EUR"))
+				.andExpect(status().isOk())
+				.andExpect(content().string(PRETTY_CSV));
+	}
+
+	@Test
+	void testStreamReportInvalidCurrencyReturns400() throws Exception {
+		MvcResult result = mockMvc.perform(get("/report/stream")
+						.param("portfolioId", "7")
+						.param("targetCurrency", "XYZ"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().string(containsString("Invalid targetCurrency")));
+	}
+
+	@Test
+	void testBatchReportStreamsEveryPortfolio() throws Exception {
+		doAnswer(call -> writeCsv(call.getArgument(6, OutputStream.class), BATCH_CSV))
+				.when(reportService).streamBatchCsv(eq(List.of(3L, 4L)), any(), any(), any(), eq(false), eq(ReportFormat.CSV), any());
+
+		MvcResult result = mockMvc.perform(get("/report/batch").param("portfolioIds", "3,4,3"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=portfolios_batch_2_raw.csv"))
+				.andExpect(content().contentType("text/csv;charset=UTF-8"))
+				.andExpect(content().string(BATCH_CSV));
+	}
+}
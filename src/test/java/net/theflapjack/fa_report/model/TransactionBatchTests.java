@@ -0,0 +1,91 @@
+package net.theflapjack.fa_report.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionBatchTests {
+
+	private static FlatTransaction tx(String portfolio, String type, String transactionDate, String settlementDate, double quantity) {
+		return new FlatTransaction(portfolio, "Apple", "US0378331005", "USD", quantity, 150.5, 2.0, type,
+				transactionDate, settlementDate, 301.0, 0.5, 150.5);
+	}
+
+	@Test
+	void testViewGivesBackWhatWasAdded() {
+		List<FlatTransaction> rows = List.of(
+				tx("P1", "Buy", "2023-01-05", "", 10),
+				tx("P1", "Sell", "2023-02-29", "2023-01-07", 3.5), // not a real date, kept as text
+				tx("P2", "Buy", null, null, 1));
+
+		TransactionBatch batch = TransactionBatch.of(rows);
+
+		assertEquals(rows, batch.asList());
+		assertEquals(2, batch.typeCount());
+		assertEquals(batch.typeCode(0), batch.typeCode(2));
+		assertEquals(LocalDate.of(2023, 1, 5).toEpochDay(), batch.transactionDay(0));
+		assertEquals(TransactionBatch.NO_DATE, batch.transactionDay(1));
+		assertEquals(TransactionBatch.NO_DATE, batch.settlementDay(0));
+		assertEquals("", batch.settlementDate(0));
+	}
+
+	@Test
+	void testAddRowsTranslatesDictionaries() {
+		TransactionBatch first = TransactionBatch.of(List.of(tx("P1", "Buy", "2023-01-05", "", 1)));
+		TransactionBatch second = TransactionBatch.of(List.of(
+				tx("P2", "Deposit", "2023-03-01", "", 2),
+				tx("P3", "Buy", "bad date", "", 3)));
+
+		TransactionBatch merged = new TransactionBatch();
+		merged.addAll(first);
+		merged.addRows(second, new int[]{1}, 1);
+
+		assertEquals(2, merged.size());
+		assertEquals("P3", merged.portfolioShortName(1));
+		assertEquals("bad date", merged.transactionDate(1));
+		assertEquals(3.0, merged.quantity(1));
+		assertEquals(1, merged.typeCount());
+	}
+
+	@Test
+	void testClearDropsTheDictionaries() {
+		TransactionBatch buffer = new TransactionBatch();
+		buffer.add(tx("P1", "Buy", "bad date", "", 1));
+		buffer.add(tx("P2", "Deposit", "2023-03-01", "", 2));
+
+		buffer.clear();
+		buffer.add(tx("P3", "Sell", "other date", "", 3));
+
+		assertEquals(1, buffer.size());
+		assertEquals(1, buffer.typeCount());
+		assertEquals(1, buffer.currencyCount());
+		assertEquals("P3", buffer.portfolioShortName(0));
+		assertEquals("Sell", buffer.typeNameOf(0));
+		assertEquals("other date", buffer.transactionDate(0));
+	}
+
+	@Test
+	void testEpochDayOnlyAcceptsPlainDates() {
+		assertEquals(LocalDate.of(2024, 2, 29).toEpochDay(), TransactionBatch.epochDay("2024-02-29"));
+		assertEquals(TransactionBatch.NO_DATE, TransactionBatch.epochDay("2023-02-29"));
+		assertEquals(TransactionBatch.NO_DATE, TransactionBatch.epochDay("2023-1-05"));
+		assertEquals(TransactionBatch.NO_DATE, TransactionBatch.epochDay("2023-01-05T00:00"));
+		assertEquals(TransactionBatch.NO_DATE, TransactionBatch.epochDay(""));
+	}
+
+	@Test
+	void testEncodeDecodeRoundTrip() {
+		List<FlatTransaction> rows = List.of(
+				tx("P1", "Buy", "2023-01-05", "", 10),
+				tx("Pörtfolio", null, "2023-02-29", null, -3.5),
+				tx(null, "Buy", null, "2023-01-07", Double.NaN));
+
+		TransactionBatch decoded = TransactionBatch.decode(TransactionBatch.of(rows).encode());
+
+		assertEquals(rows, decoded.asList());
+		assertEquals(2, decoded.typeCount());
+	}
+}
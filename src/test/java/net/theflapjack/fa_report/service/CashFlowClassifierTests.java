@@ -0,0 +1,74 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.FlatTransaction;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CashFlowClassifierTests {
+
+	private static FlatTransaction tx(String type, String currency, double notionalUSD) {
+		return new FlatTransaction("P1", "Apple", "US0378331005", currency, 1.0, 1.0, 1.0, type,
+				"2023-01-05", "2023-01-07", notionalUSD, 1.0, notionalUSD);
+	}
+
+	@Test
+	void testConfiguredTypesAreCaseInsensitive() {
+		CashFlowClassifier classifier = new CashFlowClassifier(List.of("Deposit", " Dividend "), List.of("Buy", "dividend"));
+
+		assertEquals(CashFlowClassifier.IN, classifier.classify("DEPOSIT"));
+		assertEquals(CashFlowClassifier.IN, classifier.classify("Dividend")); // in both lists, cash in wins
+		assertEquals(CashFlowClassifier.OUT, classifier.classify("buy"));
+		assertEquals(CashFlowClassifier.NONE, classifier.classify("Split"));
+		assertEquals(CashFlowClassifier.NONE, classifier.classify(null));
+	}
+
+	@Test
+	void testSubtotalsPerCurrencyAndType() {
+		TransactionBatch batch = TransactionBatch.of(List.of(
+				tx("Deposit", "EUR", 100),
+				tx("Buy", "EUR", 30),
+				tx("deposit", "USD", 50),
+				tx("Split", "USD", 999)));
+		CashFlowSummary summary = new CashFlowSummary(batch, CashFlowClassifier.defaults());
+		for (int row = 0; row < batch.size(); row++) {
+			summary.add(row);
+		}
+
+		assertEquals(new CashFlowSummary.Flow(150, 30), summary.total());
+		assertEquals(Map.of(
+				"EUR", new CashFlowSummary.Flow(100, 30),
+				"USD", new CashFlowSummary.Flow(50, 0)), summary.byCurrency());
+		assertEquals(Map.of(
+				"Buy", new CashFlowSummary.Flow(0, 30),
+				"Deposit", new CashFlowSummary.Flow(150, 0)), summary.byType());
+	}
+
+	@Test
+	void testSubtotalsSurviveTheStreamingBufferBeingCleared() {
+		TransactionBatch buffer = new TransactionBatch();
+		CashFlowSummary summary = new CashFlowSummary(buffer, CashFlowClassifier.defaults(), true);
+		summary.add(buffer.add(tx("Deposit", "EUR", 100)));
+		summary.beforeClear();
+		buffer.clear();
+		summary.add(buffer.add(new FlatTransaction("P1", "Apple", "US0378331005", "USD", 1.0, 1.0, 1.0, "Buy",
+				"2023-02-10", "2023-02-12", 40.0, 1.0, 40.0)));
+		summary.add(buffer.add(new FlatTransaction("P1", "Apple", "US0378331005", "USD", 1.0, 1.0, 1.0, "Buy",
+				null, null, 5.0, 1.0, 5.0)));
+
+		assertEquals(3, summary.rows());
+		assertEquals(List.of("2023-01", "2023-02", "unknown"), List.copyOf(summary.byMonth().keySet()));
+		assertEquals(new CashFlowSummary.Flow(0, 40), summary.byMonth().get("2023-02"));
+		assertEquals(new CashFlowSummary.Flow(100, 45), summary.total());
+		assertEquals(Map.of(
+				"EUR", new CashFlowSummary.Flow(100, 0),
+				"USD", new CashFlowSummary.Flow(0, 45)), summary.byCurrency());
+		assertEquals(Map.of(
+				"Buy", new CashFlowSummary.Flow(0, 45),
+				"Deposit", new CashFlowSummary.Flow(100, 0)), summary.byType());
+	}
+}
@@ -0,0 +1,101 @@
+package net.theflapjack.fa_report.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvEncoderTests {
+
+	private static final double[] EDGE_CASES = {
+			0.0, -0.0, 0.001, -0.001, 0.005, 0.015, 0.125, -0.125, 1.005, 2.675, 1.115, -5.555, 99999.995,
+			1e-9, 999_999_999.995, 1e9, 123456789012.345, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+	};
+
+	@Test
+	void testNumbersMatchOldFormatters() {
+		DecimalFormat money = new DecimalFormat("0.00", DecimalFormatSymbols.getInstance(Locale.ROOT));
+		DecimalFormat humanMoney = new DecimalFormat("$#,##0.00", DecimalFormatSymbols.getInstance(Locale.ROOT));
+		Random random = new Random(7);
+
+		for (int i = 0; i < 200_000 + EDGE_CASES.length; i++) {
+			double v;
+			if (i < EDGE_CASES.length) {
+				v = EDGE_CASES[i];
+			} else if (i % 2 == 0) {
+				v = (random.nextInt(2_000_000_000) - 1_000_000_000) / 1000.0; // lots of exact 3 decimal ties
+			} else {
+				v = random.nextGaussian() * Math.pow(10, random.nextInt(10));
+			}
+
+			assertEquals(String.format(Locale.ROOT, "%.2f", v), new CsvEncoder(16).fixed2(v).toString(), "fixed2 " + v);
+			assertEquals(money.format(v), new CsvEncoder(16).money(v).toString(), "money " + v);
+			assertEquals(humanMoney.format(v), new CsvEncoder(16).humanMoney(v).toString(), "humanMoney " + v);
+		}
+		assertEquals("", new CsvEncoder(16).money(null).toString());
+	}
+
+	@Test
+	void testOutputIgnoresTheDefaultLocale() {
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			// 2.675 and 1e12 take the formatter fallbacks, 1234.5 the fast path
+			String csv = new CsvEncoder(16)
+					.fixed2(1234.5).comma().fixed2(2.675).comma().fixed2(1e12).comma()
+					.money(1234.5).comma().money(2.675).comma().money(1e12).comma()
+					.humanMoney(1234.5).comma().humanMoney(2.675).comma().humanMoney(1e12).comma()
+					.date("2023-03-05").comma().date("0000-10-01").newline()
+					.toString();
+
+			assertEquals("1234.50,2.68,1000000000000.00,"
+					+ "1234.50,2.67,1000000000000.00,"
+					+ "$1,234.50,$2.67,$1,000,000,000,000.00,"
+					+ "05-Mar-2023,01-Oct-0001\n", csv);
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+
+	@Test
+	void testFieldsAreQuotedOnlyWhenNeeded() {
+		String csv = new CsvEncoder(16)
+				.field("Apple").comma()
+				.field("Apple, Inc.").comma()
+				.field("The \"Fund\"").comma()
+				.field("two\nlines").comma()
+				.field(null).newline()
+				.toString();
+
+		assertEquals("Apple,\"Apple, Inc.\",\"The \"\"Fund\"\"\",\"two\nlines\",\n", csv);
+	}
+
+	@Test
+	void testDates() {
+		assertEquals("05-Jan-2023", CsvEncoder.formatDate("2023-01-05"));
+		assertEquals("29-Feb-2024", CsvEncoder.formatDate("2024-02-29"));
+		assertEquals("", CsvEncoder.formatDate("2023-02-29"));
+		assertEquals("", CsvEncoder.formatDate("not a date"));
+		assertEquals("", CsvEncoder.formatDate(""));
+		assertEquals("", CsvEncoder.formatDate(null));
+	}
+
+	@Test
+	void testWriterOutputSurvivesManyFlushes() {
+		StringWriter out = new StringWriter();
+		CsvEncoder csv = new CsvEncoder(out);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10_000; i++) {
+			csv.field("row " + i).comma().fixed2(i / 3.0).newline();
+			expected.append("row ").append(i).append(',').append(String.format("%.2f", i / 3.0)).append('\n');
+		}
+		csv.flush();
+
+		assertEquals(expected.toString(), out.toString());
+	}
+}
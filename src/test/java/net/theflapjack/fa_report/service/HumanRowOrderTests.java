@@ -0,0 +1,72 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.FlatTransaction;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HumanRowOrderTests {
+
+	private static FlatTransaction tx(String type, String date) {
+		return new FlatTransaction("P1", "Apple", "US0378331005", "USD", 1.0, 1.0, 1.0, type,
+				date, date, 1.0, 1.0, 1.0);
+	}
+
+	@Test
+	void testKeysSortLikeTheComparator() {
+		TransactionBatch batch = new TransactionBatch();
+		TransactionStreamParser.parse(FaApiStub.syntheticResponse(List.of(1L, 2L, 3L), 2000), batch);
+		batch.add(tx("buy", null));
+		batch.add(tx(null, "2020-01-01"));
+		batch.add(tx("BUY", "1999-12-31"));
+
+		assertArrayEquals(HumanRowOrder.byComparator(batch), HumanRowOrder.of(batch));
+
+		// dates thousands of years apart don't fit in buckets and go through the long keys
+		batch.add(tx("Sell", "0001-01-01"));
+		batch.add(tx("Buy", "9999-12-31"));
+		assertArrayEquals(HumanRowOrder.byComparator(batch), HumanRowOrder.of(batch));
+	}
+
+	@Test
+	void testOddDatesFallBackToStringOrder() {
+		TransactionBatch batch = TransactionBatch.of(List.of(
+				tx("Buy", "2023-01-05"),
+				tx("Buy", "2023-1-4"),
+				tx("Buy", null),
+				tx("Buy", "2023-01-03")));
+
+		assertArrayEquals(new int[]{3, 0, 1, 2}, HumanRowOrder.of(batch));
+	}
+
+	@Test
+	void testEmptyDatesSortBeforeTheDays() {
+		TransactionBatch batch = TransactionBatch.of(List.of(
+				tx("Buy", "2023-01-05"),
+				tx("Buy", null),
+				tx("Buy", ""),
+				tx("Sell", ""),
+				tx("Buy", "2023-01-03")));
+
+		assertArrayEquals(new int[]{2, 4, 0, 1, 3}, HumanRowOrder.of(batch));
+		assertArrayEquals(HumanRowOrder.byComparator(batch), HumanRowOrder.of(batch));
+	}
+
+	@Test
+	void testAlreadySortedRowsKeepTheirOrder() {
+		List<FlatTransaction> rows = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			rows.add(tx(i < 50 ? "Buy" : "Sell", "2023-01-" + (10 + i % 50 / 5)));
+		}
+		int[] order = HumanRowOrder.of(TransactionBatch.of(rows));
+
+		for (int i = 0; i < order.length; i++) {
+			assertEquals(i, order[i]);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.TransactionBatch;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelRendererTests {
+
+	@Test
+	void testRangesComeBackInOrder() {
+		ParallelRenderer renderer = new ParallelRenderer(1, 4, 10);
+		try {
+			List<String> ranges = new ArrayList<>();
+			renderer.render(95, (from, to) -> from + ".." + to, ranges::add);
+
+			assertEquals(10, ranges.size());
+			assertEquals("0..10", ranges.get(0));
+			assertEquals("90..95", ranges.get(9));
+		} finally {
+			renderer.shutdown();
+		}
+	}
+
+	@Test
+	void testBelowThresholdIsOneRangeOnTheCallingThread() {
+		ParallelRenderer renderer = new ParallelRenderer(100, 4, 10);
+		try {
+			Thread caller = Thread.currentThread();
+			List<Thread> threads = new ArrayList<>();
+			renderer.render(99, (from, to) -> Thread.currentThread(), threads::add);
+
+			assertEquals(List.of(caller), threads);
+		} finally {
+			renderer.shutdown();
+		}
+	}
+
+	@Test
+	void testParallelReportMatchesSequential() {
+		ParallelRenderer parallel = new ParallelRenderer(1, 4, 7);
+		try {
+			ReportService sequentialService = ReportService.forRendering(ParallelRenderer.sequential());
+			ReportService parallelService = ReportService.forRendering(parallel);
+			TransactionBatch batch = sequentialService.parseTransactions(FaApiStub.syntheticResponse(List.of(1L, 2L), 500));
+
+			assertEquals(sequentialService.convertToCsv(batch), parallelService.convertToCsv(batch));
+
+			// Rows must match exactly, the totals only to the cent since they are added up per range
+			String sequential = sequentialService.convertToHumanCsv(batch);
+			String split = parallelService.convertToHumanCsv(batch);
+			assertEquals(rowsOf(sequential), rowsOf(split));
+			double[] expected = sequentialService.summarizeCashFlows(batch);
+			assertEquals(expected[0], totalOf(split, "Total Cash In:"), 0.011);
+			assertEquals(expected[1], totalOf(split, "Total Cash Out:"), 0.011);
+		} finally {
+			parallel.shutdown();
+		}
+	}
+
+	@Test
+	void testEveryTargetCurrencyGetsItsOwnColumns() {
+		ParallelRenderer parallel = new ParallelRenderer(1, 4, 7);
+		try {
+			ReportService sequentialService = ReportService.forRendering(ParallelRenderer.sequential());
+			ReportService parallelService = ReportService.forRendering(parallel);
+			TransactionBatch batch = sequentialService.parseTransactions(FaApiStub.syntheticResponse(List.of(1L), 300));
+			double[] eur = new double[batch.size()];
+			double[] gbp = new double[batch.size()];
+			Arrays.fill(eur, 0.5);
+			Arrays.fill(gbp, 2.0);
+			ReportService.TargetRates rates = new ReportService.TargetRates(List.of("EUR", "GBP"), new double[][]{eur, gbp});
+
+			String sequential = sequentialService.convertToHumanCsv(batch, rates);
+			assertEquals(rowsOf(sequential), rowsOf(parallelService.convertToHumanCsv(batch, rates)));
+
+			List<String> lines = sequential.lines().toList();
+			assertTrue(lines.get(0).contains("Notional (USD), Target FX Rate (EUR), Notional (EUR), Target FX Rate (GBP), Notional (GBP), Type Name"));
+			String buy = lines.stream().filter(l -> l.contains(",Buy,")).findFirst().orElseThrow();
+			assertTrue(buy.contains(",0.50,") && buy.contains(",2.00,"), buy);
+		} finally {
+			parallel.shutdown();
+		}
+	}
+
+	@Test
+	void testUnknownTargetRateIsLeftEmpty() {
+		ReportService service = ReportService.forRendering(ParallelRenderer.sequential());
+		TransactionBatch batch = service.parseTransactions(FaApiStub.syntheticResponse(List.of(1L), 1));
+		String csv = service.convertToHumanCsv(batch, new ReportService.TargetRates(List.of("EUR"), new double[][]{{Double.NaN}}));
+
+		assertEquals("P1,Security 0,US1000000000,EUR,1.00,10.00,1.00,10.80,,,Sell,01-Jan-2020,01-Jan-2020", csv.lines().toList().get(1));
+	}
+
+	private static String rowsOf(String csv) {
+		return csv.substring(0, csv.indexOf("\nSummary (USD)"));
+	}
+
+	private static double totalOf(String csv, String label) {
+		String line = csv.lines().filter(l -> l.startsWith(label)).findFirst().orElseThrow();
+		return Double.parseDouble(line.substring(line.indexOf('"') + 1, line.lastIndexOf('"')).replace("$", "").replace(",", ""));
+	}
+}
@@ -0,0 +1,133 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.TransactionBatch;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportFormatTests {
+
+	private final ReportService service = ReportService.forRendering(ParallelRenderer.sequential());
+
+	@Test
+	void testFormatParameterWinsOverAccept() {
+		assertEquals(ReportFormat.COLUMNAR, ReportFormat.resolve("Columnar", "application/gzip"));
+		assertEquals(ReportFormat.CSV_GZIP, ReportFormat.resolve(null, "application/json, application/gzip;q=0.9"));
+		assertEquals(ReportFormat.CSV, ReportFormat.resolve(null, "*/*"));
+		assertEquals(ReportFormat.CSV, ReportFormat.resolve(null, "not a media type"));
+		assertNull(ReportFormat.resolve("xml", null));
+	}
+
+	@Test
+	void testGzipIsTheSameCsvCompressed() throws IOException {
+		TransactionBatch batch = service.parseTransactions(FaApiStub.syntheticResponse(List.of(1L, 2L), 400));
+
+		for (boolean pretty : new boolean[]{false, true}) {
+			byte[] gzip = write(batch, pretty, ReportFormat.CSV_GZIP);
+			byte[] csv = write(batch, pretty, ReportFormat.CSV);
+
+			assertArrayEquals(csv, new GZIPInputStream(new ByteArrayInputStream(gzip)).readAllBytes());
+			assertTrue(gzip.length * 3 < csv.length, "compressed " + gzip.length + " of " + csv.length);
+		}
+	}
+
+	@Test
+	void testColumnarRawRowsReadBackAsTyped() throws IOException {
+		TransactionBatch batch = service.parseTransactions(FaApiStub.syntheticResponse(List.of(1L), 300));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(write(batch, false, ReportFormat.COLUMNAR)));
+
+		assertEquals(ColumnarEncoder.MAGIC, in.readInt());
+		assertEquals(ColumnarEncoder.VERSION, in.readInt());
+		List<String> names = new ArrayList<>();
+		byte[] types = new byte[in.readInt()];
+		for (int c = 0; c < types.length; c++) {
+			types[c] = in.readByte();
+			names.add(string(in));
+		}
+		assertEquals(List.of("portfolio", "security", "isin", "currency", "quantity", "unit_price", "trade_amount",
+				"type", "trade_date", "settlement_date"), names);
+
+		assertEquals(batch.size(), in.readInt());
+		String[] portfolios = null;
+		double[] quantities = new double[batch.size()];
+		int[] tradeDays = new int[batch.size()];
+		for (int c = 0; c < types.length; c++) {
+			if (types[c] == ColumnarEncoder.TEXT) {
+				String[] dictionary = new String[in.readInt()];
+				for (int i = 0; i < dictionary.length; i++) {
+					dictionary[i] = string(in);
+				}
+				String[] values = new String[batch.size()];
+				for (int row = 0; row < values.length; row++) {
+					values[row] = dictionary[in.readInt()];
+				}
+				portfolios = c == 0 ? values : portfolios;
+			} else {
+				for (int row = 0; row < batch.size(); row++) {
+					if (types[c] == ColumnarEncoder.FLOAT64) {
+						double value = in.readDouble();
+						quantities[row] = c == 4 ? value : quantities[row];
+					} else {
+						int day = in.readInt();
+						tradeDays[row] = c == 8 ? day : tradeDays[row];
+					}
+				}
+			}
+		}
+		assertEquals(0, in.readInt());
+		assertEquals(-1, in.read());
+
+		for (int row = 0; row < batch.size(); row++) {
+			assertEquals(batch.portfolioShortName(row), portfolios[row]);
+			assertEquals(batch.quantity(row), quantities[row]);
+			assertEquals(batch.transactionDay(row), tradeDays[row]);
+		}
+	}
+
+	@Test
+	void testColumnarPrettyHasAColumnPairPerTargetCurrency() throws IOException {
+		TransactionBatch batch = service.parseTransactions(FaApiStub.syntheticResponse(List.of(1L), 50));
+		double[] eur = new double[batch.size()];
+		double[] gbp = new double[batch.size()];
+		Arrays.fill(eur, 0.5);
+		Arrays.fill(gbp, 2.0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.writeReport(batch, new ReportService.TargetRates(List.of("EUR", "GBP"), new double[][]{eur, gbp}), true,
+				ReportFormat.COLUMNAR, out);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		in.skipNBytes(8);
+		List<String> names = new ArrayList<>();
+		int columns = in.readInt();
+		for (int c = 0; c < columns; c++) {
+			in.readByte();
+			names.add(string(in));
+		}
+		assertEquals(List.of("portfolio", "security", "isin", "currency", "quantity", "unit_price", "trade_amount",
+				"notional_usd", "fx_rate_EUR", "notional_EUR", "fx_rate_GBP", "notional_GBP", "type", "trade_date",
+				"settlement_date"), names);
+		assertEquals(batch.size(), in.readInt());
+	}
+
+	private byte[] write(TransactionBatch batch, boolean pretty, ReportFormat format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.writeReport(batch, ReportService.TargetRates.of(batch), pretty, format, out);
+		return out.toByteArray();
+	}
+
+	private static String string(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		return length < 0 ? null : new String(in.readNBytes(length), StandardCharsets.UTF_8);
+	}
+}
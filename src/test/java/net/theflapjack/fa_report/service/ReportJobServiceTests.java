@@ -0,0 +1,108 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.ReportJobStatus;
+import net.theflapjack.fa_report.model.ReportJobStatus.State;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportJobServiceTests {
+
+	@TempDir
+	Path dir;
+
+	private static ReportJobStatus await(ReportJobService jobs, String id) throws InterruptedException {
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		ReportJobStatus status = jobs.status(id);
+		while ((status.state() == State.QUEUED || status.state() == State.RUNNING) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+			status = jobs.status(id);
+		}
+		return status;
+	}
+
+	@Test
+	void testIdenticalInFlightJobsShareOneRun() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger runs = new AtomicInteger();
+		ReportJobService jobs = new ReportJobService((request, out, rowsRead) -> {
+			runs.incrementAndGet();
+			rowsRead.accept(2);
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			out.write(("rows of " + request.portfolioId() + "\n").getBytes(StandardCharsets.UTF_8));
+			rowsRead.accept(3);
+		}, 2, dir, 1, 10, Duration.ofMinutes(1));
+
+		ReportJobStatus first = jobs.submit("alice", 3L, "2023-01-01", "2023-12-31", List.of("usd"), false);
+		ReportJobStatus second = jobs.submit("bob", 3L, "2023-01-01", "2023-12-31", List.of("USD"), false);
+		assertEquals(first.id(), second.id());
+
+		release.countDown();
+		ReportJobStatus done = await(jobs, first.id());
+		assertEquals(State.DONE, done.state());
+		assertEquals(3, done.rowsProcessed());
+		assertNotNull(done.finished());
+		assertEquals("rows of 3\n", Files.readString(jobs.result(first.id())));
+		assertEquals(1, runs.get());
+
+		// once it's finished the same request is a new job
+		ReportJobStatus again = jobs.submit("alice", 3L, "2023-01-01", "2023-12-31", List.of("USD"), false);
+		assertNotEquals(first.id(), again.id());
+		await(jobs, again.id()); // still writing into dir otherwise when it's deleted
+	}
+
+	@Test
+	void testUserQuotaIsPerUser() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		ReportJobService jobs = new ReportJobService((request, out, rowsRead) -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}, 1, dir, 1, 10, Duration.ofMinutes(1));
+
+		ReportJobStatus first = jobs.submit("alice", 3L, null, null, List.of("USD"), false);
+		JobRejectedException rejected = assertThrows(JobRejectedException.class,
+				() -> jobs.submit("alice", 4L, null, null, List.of("USD"), false));
+		assertEquals(JobRejectedException.Reason.USER_QUOTA, rejected.getReason());
+		ReportJobStatus other = jobs.submit("bob", 4L, null, null, List.of("USD"), false);
+
+		release.countDown();
+		assertEquals(State.DONE, await(jobs, first.id()).state());
+		assertEquals(State.DONE, await(jobs, other.id()).state());
+		ReportJobStatus again = jobs.submit("alice", 4L, null, null, List.of("USD"), true); // quota is free again
+		assertEquals(State.DONE, await(jobs, again.id()).state());
+	}
+
+	@Test
+	void testFailedJobReportsTheFailureAndLeavesNoFile() throws Exception {
+		ReportJobService jobs = new ReportJobService((request, out, rowsRead) -> {
+			out.write('x');
+			throw new IllegalStateException("FA went away");
+		}, 1, dir, 1, 10, Duration.ofMinutes(1));
+
+		ReportJobStatus job = jobs.submit("alice", 3L, null, null, List.of("USD"), false);
+		ReportJobStatus failed = await(jobs, job.id());
+
+		assertEquals(State.FAILED, failed.state());
+		assertNotNull(failed.error());
+		assertNull(jobs.result(job.id()));
+		try (var files = Files.list(dir)) {
+			assertEquals(0, files.count());
+		}
+	}
+}
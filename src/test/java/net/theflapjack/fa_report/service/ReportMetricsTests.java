@@ -0,0 +1,40 @@
+package net.theflapjack.fa_report.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.theflapjack.fa_report.client.UpstreamBusyException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportMetricsTests {
+
+	@Test
+	void testCauseIsTheFirstKnownOneInTheChain() {
+		assertEquals("upstream_busy", ReportMetrics.cause(new RuntimeException(new UpstreamBusyException("busy", Duration.ofSeconds(1)))));
+		assertEquals("timeout", ReportMetrics.cause(new IllegalStateException(new TimeoutException())));
+		assertEquals("parse", ReportMetrics.cause(new UncheckedIOException(new JsonParseException(null, "bad"))));
+		assertEquals("io", ReportMetrics.cause(new IOException("broken pipe")));
+		assertEquals("other", ReportMetrics.cause(new IllegalArgumentException()));
+	}
+
+	@Test
+	void testReportMetersAreTaggedByModeAndCurrency() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		ReportMetrics metrics = new ReportMetrics(registry);
+
+		int[] sorted = metrics.time("sort", "pretty", ReportMetrics.currency(List.of("EUR")), () -> new int[]{1, 0});
+		metrics.rows("pretty", ReportMetrics.currency(List.of("EUR", "GBP")), sorted.length);
+		metrics.error("raw", new RuntimeException(new TimeoutException()));
+
+		assertEquals(1, registry.get("fa.report.stage").tags("stage", "sort", "mode", "pretty", "currency", "EUR").timer().count());
+		assertEquals(2, registry.get("fa.report.rows").tags("mode", "pretty", "currency", "multiple").summary().totalAmount());
+		assertEquals(1, registry.get("fa.report.errors").tags("mode", "raw", "cause", "timeout").counter().count());
+	}
+}
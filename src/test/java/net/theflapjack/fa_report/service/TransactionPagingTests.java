@@ -0,0 +1,87 @@
+package net.theflapjack.fa_report.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.theflapjack.fa_report.auth.OAuthClient;
+import net.theflapjack.fa_report.auth.TokenManager;
+import net.theflapjack.fa_report.cache.TransactionCache;
+import net.theflapjack.fa_report.client.FaGraphQLClient;
+import net.theflapjack.fa_report.client.UpstreamLimiter;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import net.theflapjack.fa_report.stub.FaApiStub;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionPagingTests {
+
+	private static final TransactionPaging PAGING = new TransactionPaging(true, 730, 365, 1000, 4, LocalDate.of(2000, 1, 1));
+
+	@Test
+	void testPagedStreamWritesEveryRow() throws Exception {
+		try (FaApiStub stub = new FaApiStub(3000, Duration.ZERO)) {
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			UpstreamLimiter limiter = new UpstreamLimiter(4, 1, 20, Duration.ofSeconds(5), 0.5, 10, Duration.ofSeconds(5), Duration.ofSeconds(3));
+			FaGraphQLClient client = new FaGraphQLClient(stub.graphqlUrl(), new ReactorClientHttpConnector(), -1, limiter, registry, 2, Duration.ofMillis(10));
+			TokenManager tokens = new TokenManager(new OAuthClient(stub.authUrl()), registry, Duration.ofSeconds(60));
+			ReportService service = new ReportService(client, tokens, new TransactionCache(1_000_000, Duration.ofMinutes(1)), null, null, null,
+					ParallelRenderer.sequential(), CashFlowClassifier.defaults(), PAGING, ReportMetrics.noop(), "", "", 50, false);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			service.streamCsv(1L, "2020-01-01", "2024-12-31", ReportFormat.CSV, out);
+
+			// pages come in date order, the stub's single response doesn't
+			TransactionBatch all = new TransactionBatch();
+			TransactionStreamParser.parse(FaApiStub.syntheticResponse(List.of(1L), 3000), all);
+			List<String> expected = new ArrayList<>(List.of(ReportService.forRendering(ParallelRenderer.sequential()).convertToCsv(all).split("\n")));
+			List<String> streamed = new ArrayList<>(List.of(out.toString(StandardCharsets.UTF_8).split("\n")));
+			expected.sort(null);
+			streamed.sort(null);
+			assertEquals(expected, streamed);
+		}
+	}
+
+	@Test
+	void testShortRangesAreNotPaged() {
+		assertNull(PAGING.plan("2020-01-01", "2021-06-30"));
+		assertNull(TransactionPaging.disabled().plan(null, null));
+	}
+
+	@Test
+	void testWindowsCoverTheRangeInOrder() {
+		TransactionPaging.Plan plan = PAGING.plan(null, "2003-06-30");
+		List<TransactionPaging.Window> windows = new ArrayList<>();
+		for (TransactionPaging.Window window = plan.next(); window != null; window = plan.next()) {
+			windows.add(window);
+		}
+
+		assertNull(windows.get(0).from());
+		assertEquals(LocalDate.of(1999, 12, 31), windows.get(0).to());
+		for (int i = 1; i < windows.size(); i++) {
+			assertEquals(windows.get(i - 1).to().plusDays(1), windows.get(i).from());
+		}
+		assertEquals(LocalDate.of(2003, 6, 30), windows.get(windows.size() - 1).to());
+	}
+
+	@Test
+	void testWindowsFollowTheRowDensity() {
+		TransactionPaging.Plan plan = PAGING.plan("2000-01-01", "2010-12-31");
+		TransactionPaging.Window first = plan.next();
+		assertEquals(LocalDate.of(2000, 12, 30), first.to()); // 365 days
+
+		plan.observed(first, 0);
+		TransactionPaging.Window empty = plan.next();
+		assertEquals(730 - 1, empty.to().toEpochDay() - empty.from().toEpochDay());
+
+		plan.observed(empty, 7300); // 10 rows a day, 1000 rows a page
+		TransactionPaging.Window dense = plan.next();
+		assertEquals(100 - 1, dense.to().toEpochDay() - dense.from().toEpochDay());
+	}
+}
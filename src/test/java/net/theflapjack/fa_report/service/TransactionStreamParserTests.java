@@ -0,0 +1,82 @@
+package net.theflapjack.fa_report.service;
+
+import net.theflapjack.fa_report.model.FlatTransaction;
+import net.theflapjack.fa_report.model.TransactionBatch;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionStreamParserTests {
+
+	private static final String RESPONSE = """
+			{
+			  "data": {
+			    "portfoliosByIds": [
+			      {
+			        "transactions": [
+			          {
+			            "portfolio": { "shortName": "P1" },
+			            "security": { "name": "Apple", "isinCode": "US0378331005" },
+			            "currency": { "code": "USD" },
+			            "quantity": 10,
+			            "unitPrice": 150.5,
+			            "tradeAmount": 2,
+			            "type": { "name": "Buy" },
+			            "transactionDate": "2023-01-05",
+			            "settlementDate": null,
+			            "fxUSD": 1.0,
+			            "fxTarget": 0.5
+			          },
+			          {
+			            "security": null,
+			            "quantity": "3.5",
+			            "type": { "name": "Deposit" }
+			          }
+			        ]
+			      },
+			      {
+			        "transactions": [
+			          { "portfolio": { "shortName": "P2" }, "unknown": { "nested": [1, 2] } }
+			        ]
+			      }
+			    ]
+			  }
+			}
+			""";
+
+	@Test
+	void testParsesEveryPortfolioAndTransaction() {
+		TransactionBatch batch = new TransactionBatch();
+		TransactionStreamParser.parse(new ByteArrayInputStream(RESPONSE.getBytes(StandardCharsets.UTF_8)), batch);
+		List<FlatTransaction> rows = batch.asList();
+
+		assertEquals(3, rows.size());
+
+		FlatTransaction first = rows.get(0);
+		assertEquals("P1", first.getPortfolioShortName());
+		assertEquals("Apple", first.getSecurityName());
+		assertEquals("US0378331005", first.getSecurityISIN());
+		assertEquals("Buy", first.getTypeName());
+		assertEquals("", first.getSettlementDate());
+		assertEquals(301.0, first.getNotionalPriceUSD());
+		assertEquals(150.5, first.getNotionalPriceTarget());
+
+		FlatTransaction second = rows.get(1);
+		assertEquals("", second.getPortfolioShortName());
+		assertEquals("", second.getSecurityName());
+		assertEquals(3.5, second.getQuantity());
+		assertEquals(0.0, second.getUnitPrice());
+
+		assertEquals("P2", rows.get(2).getPortfolioShortName());
+	}
+
+	@Test
+	void testErrorPayloadFails() {
+		String errors = "{\"errors\":[{\"message\":\"boom\"}],\"data\":null}";
+		assertThrows(RuntimeException.class, () -> TransactionStreamParser.parse(errors, new TransactionBatch()));
+	}
+}
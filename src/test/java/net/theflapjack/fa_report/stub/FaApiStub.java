@@ -0,0 +1,263 @@
+package net.theflapjack.fa_report.stub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Local stand-in for FA's OAuth and GraphQL endpoints, serves synthetic portfolios after a fixed delay
+public class FaApiStub implements AutoCloseable {
+
+    public static final String TOKEN_PATH = "/auth/realms/fa/protocol/openid-connect";
+
+    private static final Pattern IDS = Pattern.compile("\"ids\"\\s*:\\s*\\[([0-9,\\s]*)]");
+    private static final Pattern START_DATE = Pattern.compile("\"startDate\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern END_DATE = Pattern.compile("\"endDate\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern CURRENCY = Pattern.compile("\"currency\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern QUOTE_CURRENCY = Pattern.compile("\"quoteCurrency\"\\s*:\\s*\"([^\"]*)\"");
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String[] TYPES = {"Buy", "Sell", "Deposit", "Dividend", "Management fee", "Cashflow in"};
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int transactionsPerPortfolio;
+    private final Duration latency;
+    private final AtomicInteger tokenCalls = new AtomicInteger();
+    private final AtomicInteger graphqlCalls = new AtomicInteger();
+    private final AtomicInteger fxCalls = new AtomicInteger();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private volatile int failureStatus;
+    private final Random errors = new Random(42); // seeded so a load test run fails the same share of calls every time
+    private volatile double errorRate;
+    private volatile int errorStatus;
+
+    public FaApiStub(int transactionsPerPortfolio, Duration latency) throws IOException {
+        this.transactionsPerPortfolio = transactionsPerPortfolio;
+        this.latency = latency;
+        this.executor = Executors.newVirtualThreadPerTaskExecutor(); // the stub must never be the bottleneck
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        this.server.createContext(TOKEN_PATH + "/token", this::handleToken);
+        this.server.createContext("/graphql", this::handleGraphql);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public String authUrl() {
+        return baseUrl() + TOKEN_PATH;
+    }
+
+    public String graphqlUrl() {
+        return baseUrl() + "/graphql";
+    }
+
+    public int tokenCalls() {
+        return tokenCalls.get();
+    }
+
+    public int graphqlCalls() {
+        return graphqlCalls.get();
+    }
+
+    // How many of the GraphQL calls were FX rate queries
+    public int fxCalls() {
+        return fxCalls.get();
+    }
+
+    // The next `calls` GraphQL calls answer with status instead of data, like FA does when it's overloaded
+    public void failNext(int calls, int status) {
+        failureStatus = status;
+        failuresLeft.set(calls);
+    }
+
+    // From now on each GraphQL call answers with status instead of data with this probability, 0 turns it off
+    public void errorRate(double rate, int status) {
+        errorStatus = status;
+        errorRate = rate;
+    }
+
+    private String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        tokenCalls.incrementAndGet();
+        exchange.getRequestBody().readAllBytes();
+        respond(exchange, """
+                {"access_token":"stub-access-token","refresh_token":"stub-refresh-token","expires_in":300}""");
+    }
+
+    private void handleGraphql(HttpExchange exchange) throws IOException {
+        graphqlCalls.incrementAndGet();
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        pause();
+        if (failuresLeft.getAndUpdate(left -> Math.max(0, left - 1)) > 0) {
+            exchange.sendResponseHeaders(failureStatus, -1);
+            exchange.close();
+            return;
+        }
+        if (errorRate > 0 && errors.nextDouble() < errorRate) {
+            exchange.sendResponseHeaders(errorStatus, -1);
+            exchange.close();
+            return;
+        }
+        if (!isJson(body)) {
+            respond(exchange, 400, "{\"errors\":[{\"message\":\"Request body is not valid JSON\"}]}");
+            return;
+        }
+        if (body.contains("currencyByCode")) {
+            fxCalls.incrementAndGet();
+            respond(exchange, fxRatesResponse(text(CURRENCY, body), text(QUOTE_CURRENCY, body), date(START_DATE, body), date(END_DATE, body)));
+            return;
+        }
+        respond(exchange, syntheticResponse(ids(body), transactionsPerPortfolio, date(START_DATE, body), date(END_DATE, body)));
+    }
+
+    // FA rejects anything that isn't JSON, so the stub does too
+    private static boolean isJson(String body) {
+        try {
+            return JSON.readTree(body).isObject();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void pause() {
+        if (latency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Long> ids(String body) {
+        List<Long> ids = new ArrayList<>();
+        Matcher matcher = IDS.matcher(body);
+        if (matcher.find()) {
+            for (String id : matcher.group(1).split(",")) {
+                if (!id.isBlank()) {
+                    ids.add(Long.parseLong(id.trim()));
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Empty (FA's "no limit") when missing
+    private static LocalDate date(Pattern pattern, String body) {
+        Matcher matcher = pattern.matcher(body);
+        return matcher.find() && !matcher.group(1).isEmpty() ? LocalDate.parse(matcher.group(1)) : null;
+    }
+
+    private static String text(Pattern pattern, String body) {
+        Matcher matcher = pattern.matcher(body);
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+    // A rate for every weekday between from and to, none at weekends like FA. Unknown currencies have no rates
+    public static String fxRatesResponse(String base, String quote, LocalDate from, LocalDate to) {
+        StringBuilder json = new StringBuilder("{\"data\":{\"currencyByCode\":{\"fxRates\":[");
+        if (usdValue(base) > 0 && usdValue(quote) > 0 && from != null && to != null) {
+            boolean first = true;
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                if (day.getDayOfWeek().getValue() >= 6) {
+                    continue;
+                }
+                json.append(first ? "" : ",")
+                        .append("{\"date\":\"").append(day).append("\",\"rate\":").append(fxRate(base, quote, day)).append('}');
+                first = false;
+            }
+        }
+        return json.append("]}}}").toString();
+    }
+
+    // The stub's rate of base in quote on a weekday
+    public static double fxRate(String base, String quote, LocalDate day) {
+        double drift = 1 + (day.toEpochDay() % 20) / 1000.0;
+        return Math.round(usdValue(base) / usdValue(quote) * drift * 10_000) / 10_000.0;
+    }
+
+    private static double usdValue(String currency) {
+        return switch (currency) {
+            case "USD" -> 1.0;
+            case "EUR" -> 1.08;
+            case "GBP" -> 1.27;
+            case "SEK" -> 0.095;
+            default -> 0;
+        };
+    }
+
+    // Deterministic per portfolio id so repeated runs render the same reports. Also used by the JMH benchmarks
+    public static String syntheticResponse(List<Long> ids, int transactionsPerPortfolio) {
+        return syntheticResponse(ids, transactionsPerPortfolio, null, null);
+    }
+
+    // Only the transactions dated between from and to (inclusive, null = open), like FA's startDate/endDate filter
+    public static String syntheticResponse(List<Long> ids, int transactionsPerPortfolio, LocalDate from, LocalDate to) {
+        StringBuilder json = new StringBuilder(128 + ids.size() * transactionsPerPortfolio * 420);
+        json.append("{\"data\":{\"portfoliosByIds\":[");
+        for (int p = 0; p < ids.size(); p++) {
+            long id = ids.get(p);
+            json.append(p == 0 ? "" : ",").append("{\"transactions\":[");
+            LocalDate date = LocalDate.of(2020, 1, 1);
+            boolean first = true;
+            for (int i = 0; i < transactionsPerPortfolio; i++) {
+                LocalDate day = date.plusDays(i % 1500);
+                if (from != null && day.isBefore(from) || to != null && day.isAfter(to)) {
+                    continue;
+                }
+                json.append(first ? "" : ",")
+                        .append("{\"portfolio\":{\"shortName\":\"P").append(id).append("\"},")
+                        .append("\"security\":{\"name\":\"Security ").append(i % 97).append("\",\"isinCode\":\"US").append(1_000_000_000L + i % 97).append("\"},")
+                        .append("\"currency\":{\"code\":\"").append(i % 3 == 0 ? "EUR" : "USD").append("\"},")
+                        .append("\"quantity\":").append(1 + i % 250).append(',')
+                        .append("\"unitPrice\":").append(10 + (i * 37 % 10_000) / 100.0).append(',')
+                        .append("\"tradeAmount\":").append(1 + i % 7).append(',')
+                        .append("\"type\":{\"name\":\"").append(TYPES[(int) ((i + id) % TYPES.length)]).append("\"},")
+                        .append("\"transactionDate\":\"").append(day).append("\",")
+                        .append("\"settlementDate\":\"").append(day).append("\",")
+                        .append("\"fxUSD\":").append(i % 3 == 0 ? 1.08 : 1.0)
+                        .append('}');
+                first = false;
+            }
+            json.append("]}");
+        }
+        json.append("]}}");
+        return json.toString();
+    }
+
+    private void respond(HttpExchange exchange, String json) throws IOException {
+        respond(exchange, 200, json);
+    }
+
+    private void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}